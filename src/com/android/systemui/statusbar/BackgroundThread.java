@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * One low priority thread for the status bar's small jobs off the main
+ * thread, started on first use and quit when the status bar goes away.
+ */
+final class BackgroundThread {
+    private static HandlerThread sThread;
+    private static Handler sHandler;
+
+    private BackgroundThread() {
+    }
+
+    static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            sThread = new HandlerThread("StatusBarBackground", Process.THREAD_PRIORITY_BACKGROUND);
+            sThread.start();
+            sHandler = new Handler(sThread.getLooper());
+        }
+        return sHandler;
+    }
+
+    /**
+     * Quit the thread; what's still queued on it is dropped.
+     */
+    static synchronized void quit() {
+        if (sThread != null) {
+            sThread.quit();
+            sThread = null;
+            sHandler = null;
+        }
+    }
+}
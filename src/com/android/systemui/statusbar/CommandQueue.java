@@ -19,6 +19,14 @@ package com.android.systemui.statusbar;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.android.internal.statusbar.IStatusBar;
 import com.android.internal.statusbar.StatusBarIcon;
@@ -31,34 +39,163 @@ import com.android.internal.statusbar.StatusBarNotification;
  * thread, and calls onto Callbacks.  It also takes care of
  * coalescing these calls so they don't stack up.  For the calls
  * are coalesced, note that they are all idempotent.
+ *
+ * Binder threads only append a command to mIncoming under its lock, and
+ * post a single flush message when there isn't one coming already; they
+ * never touch the Handler's queue otherwise.  On the main thread the
+ * commands are drained and coalesced, and everything that arrived before
+ * the frame tick is delivered as one ordered batch: icons, then
+ * notifications, then disable state, then panel visibility.
  */
 class CommandQueue extends IStatusBar.Stub {
     private static final String TAG = "StatusBar.CommandQueue";
 
-    private static final int MSG_MASK = 0xffff0000;
-    private static final int INDEX_MASK = 0x0000ffff;
+    private static final int MSG_FLUSH = 0x00010000;
+    private static final int MSG_FLUSH_DEFERRED = 0x00020000;
+
+    // echoes kept per icon slot
+    private static final int MAX_ECHOES = 8;
+
+    // opcodes of the commands in mIncoming
+    private static final int CMD_SET_ICON = 1;
+    private static final int CMD_REMOVE_ICON = 2;
+    private static final int CMD_ADD_NOTIFICATION = 3;
+    private static final int CMD_UPDATE_NOTIFICATION = 4;
+    private static final int CMD_REMOVE_NOTIFICATION = 5;
+    private static final int CMD_DISABLE = 6;
+    private static final int CMD_EXPAND = 7;
+    private static final int CMD_COLLAPSE = 8;
 
-    private static final int MSG_ICON = 0x00010000;
     private static final int OP_SET_ICON = 1;
     private static final int OP_REMOVE_ICON = 2;
 
-    private static final int MSG_ADD_NOTIFICATION = 0x00020000;
-    private static final int MSG_UPDATE_NOTIFICATION = 0x00030000;
-    private static final int MSG_REMOVE_NOTIFICATION = 0x00040000;
-
-    private static final int MSG_DISABLE = 0x00050000;
+    private static final int OP_ADD_NOTIFICATION = 1;
+    private static final int OP_UPDATE_NOTIFICATION = 2;
+    private static final int OP_REMOVE_NOTIFICATION = 3;
 
-    private static final int MSG_SET_VISIBILITY = 0x00060000;
     private static final int OP_EXPAND = 1;
     private static final int OP_COLLAPSE = 2;
 
     private StatusBarIconList mList;
     private Callbacks mCallbacks;
+    private NotificationRateLimiter mRateLimiter;
     private Handler mHandler = new H();
 
+    private final AtomicBoolean mFlushPosted = new AtomicBoolean();
+
+    private static final class Command {
+        final int op;
+        final int index;
+        final int arg;
+        final Object obj;
+        final Object obj2;
+
+        Command(int op, int index, int arg, Object obj, Object obj2) {
+            this.op = op;
+            this.index = index;
+            this.arg = arg;
+            this.obj = obj;
+            this.obj2 = obj2;
+        }
+    }
+
+    // Commands from binder threads, in order; guarded by itself.
+    private final ArrayList<Command> mIncoming = new ArrayList<Command>();
+
     private class NotificationQueueEntry {
+        int op;
         IBinder key;
         StatusBarNotification notification;
+        long fingerprint;
+        // came in while gated, so it's stale by the time it's delivered
+        boolean quiet;
+    }
+
+    // Everything below is only touched on the main thread, while draining mIncoming.
+
+    // Latest pending icon for each slot index; a null value means remove.
+    private final SparseArray<StatusBarIcon> mPendingIcons = new SparseArray<StatusBarIcon>();
+    // Latest pending state for each notification key, in order of first arrival.
+    private final LinkedHashMap<IBinder, NotificationQueueEntry> mPendingNotifications
+            = new LinkedHashMap<IBinder, NotificationQueueEntry>();
+    private boolean mDisablePending;
+    private int mPendingDisable;
+    private int mPendingVisibility;
+    private int mDroppedNotificationUpdates;
+    private int mBatches;
+    private int mBatchedCommands;
+    // While gated (the screen is off) drained commands only update the pending
+    // tables above; everything is delivered in one batch when the gate opens.
+    private boolean mGated;
+    private int mGatedCommands;
+    private int mCollapsedGatedCommands;
+    private int mDroppedPanelCommands;
+
+    // What the server will send back for the icon changes StatusBarIconGate syncs
+    // to it, oldest first for each slot index.  Those are stale by the time they get
+    // here, since the changes were shown already; anything else is applied as usual.
+    // Guarded by itself.
+    private final SparseArray<ArrayList<StatusBarIcon>> mEchoes
+            = new SparseArray<ArrayList<StatusBarIcon>>();
+    private int mDroppedEchoes;
+    private int mSupersededIcons;
+
+    private final ArrayList<NotificationQueueEntry> mFlushNotifications
+            = new ArrayList<NotificationQueueEntry>();
+    private final ArrayList<Command> mFlushCommands = new ArrayList<Command>();
+    private int mLargestDrain;
+    // Adds and updates held back by mRateLimiter, latest state per key.
+    private final LinkedHashMap<IBinder, NotificationQueueEntry> mDeferredNotifications
+            = new LinkedHashMap<IBinder, NotificationQueueEntry>();
+
+    private void consume(Command c) {
+        final int op = c.op;
+        final int index = c.index;
+        final int arg = c.arg;
+        final Object obj = c.obj;
+        final Object obj2 = c.obj2;
+        mBatchedCommands++;
+        if (op == CMD_SET_ICON && isEcho(index, (StatusBarIcon)obj)) {
+            mDroppedEchoes++;
+            return;
+        }
+        switch (op) {
+            case CMD_SET_ICON:
+                collapseIcon(index);
+                mPendingIcons.put(index, (StatusBarIcon)obj);
+                break;
+            case CMD_REMOVE_ICON:
+                collapseIcon(index);
+                mPendingIcons.put(index, null);
+                break;
+            case CMD_ADD_NOTIFICATION:
+                if (((StatusBarNotification)obj2).notification.fullScreenIntent != null) {
+                    // Not view work, so it doesn't wait for the gate or the rate
+                    // limiter; only the row does.
+                    mCallbacks.sendFullScreenIntent((StatusBarNotification)obj2);
+                }
+                coalesceNotification(OP_ADD_NOTIFICATION, (IBinder)obj,
+                        (StatusBarNotification)obj2, joinFingerprint(index, arg));
+                break;
+            case CMD_UPDATE_NOTIFICATION:
+                coalesceNotification(OP_UPDATE_NOTIFICATION, (IBinder)obj,
+                        (StatusBarNotification)obj2, joinFingerprint(index, arg));
+                break;
+            case CMD_REMOVE_NOTIFICATION:
+                coalesceNotification(OP_REMOVE_NOTIFICATION, (IBinder)obj, null,
+                        NotificationFingerprint.UNKNOWN);
+                break;
+            case CMD_DISABLE:
+                mDisablePending = true;
+                mPendingDisable = arg;
+                break;
+            case CMD_EXPAND:
+                mPendingVisibility = OP_EXPAND;
+                break;
+            case CMD_COLLAPSE:
+                mPendingVisibility = OP_COLLAPSE;
+                break;
+        }
     }
 
     /**
@@ -69,135 +206,508 @@ class CommandQueue extends IStatusBar.Stub {
         public void updateIcon(String slot, int index, int viewIndex,
                 StatusBarIcon old, StatusBarIcon icon);
         public void removeIcon(String slot, int index, int viewIndex);
-        public void addNotification(IBinder key, StatusBarNotification notification);
-        public void updateNotification(IBinder key, StatusBarNotification notification);
+        /**
+         * fingerprint is the {@link NotificationFingerprint} of notification,
+         * computed before it was queued.  quiet is set for notifications that
+         * piled up while the screen was off: they're shown, but not ticked.
+         */
+        public void addNotification(IBinder key, StatusBarNotification notification,
+                long fingerprint, boolean quiet);
+        public void updateNotification(IBinder key, StatusBarNotification notification,
+                long fingerprint, boolean quiet);
         public void removeNotification(IBinder key);
+        /**
+         * Called as soon as an add with a fullScreenIntent is drained, before
+         * (and whether or not) its addNotification is delivered.
+         */
+        public void sendFullScreenIntent(StatusBarNotification notification);
         public void disable(int state);
         public void animateExpand();
         public void animateCollapse();
+        /**
+         * Brackets the calls above that make up one frame's worth of commands, so
+         * that state derived from the whole set only needs to be recomputed once.
+         */
+        public void beginBatch();
+        public void endBatch();
     }
 
-    public CommandQueue(Callbacks callbacks, StatusBarIconList list) {
+    public CommandQueue(Callbacks callbacks, StatusBarIconList list,
+            NotificationRateLimiter rateLimiter) {
         mCallbacks = callbacks;
         mList = list;
+        mRateLimiter = rateLimiter;
     }
 
     public void setIcon(int index, StatusBarIcon icon) {
-        synchronized (mList) {
-            int what = MSG_ICON | index;
-            mHandler.removeMessages(what);
-            mHandler.obtainMessage(what, OP_SET_ICON, 0, icon.clone()).sendToTarget();
-        }
+        post(CMD_SET_ICON, index, 0, icon.clone(), null);
     }
 
     public void removeIcon(int index) {
-        synchronized (mList) {
-            int what = MSG_ICON | index;
-            mHandler.removeMessages(what);
-            mHandler.obtainMessage(what, OP_REMOVE_ICON, 0, null).sendToTarget();
-        }
+        post(CMD_REMOVE_ICON, index, 0, null, null);
     }
 
     public void addNotification(IBinder key, StatusBarNotification notification) {
-        synchronized (mList) {
-            NotificationQueueEntry ne = new NotificationQueueEntry();
-            ne.key = key;
-            ne.notification = notification;
-            mHandler.obtainMessage(MSG_ADD_NOTIFICATION, 0, 0, ne).sendToTarget();
-        }
+        // Hash here, on the binder thread, rather than on the main thread.
+        final long fingerprint = NotificationFingerprint.compute(notification);
+        post(CMD_ADD_NOTIFICATION, (int)(fingerprint >>> 32), (int)fingerprint,
+                key, notification);
     }
 
     public void updateNotification(IBinder key, StatusBarNotification notification) {
-        synchronized (mList) {
-            NotificationQueueEntry ne = new NotificationQueueEntry();
+        final long fingerprint = NotificationFingerprint.compute(notification);
+        post(CMD_UPDATE_NOTIFICATION, (int)(fingerprint >>> 32), (int)fingerprint,
+                key, notification);
+    }
+
+    public void removeNotification(IBinder key) {
+        post(CMD_REMOVE_NOTIFICATION, 0, 0, key, null);
+    }
+
+    public void disable(int state) {
+        post(CMD_DISABLE, 0, state, null, null);
+    }
+
+    public void animateExpand() {
+        post(CMD_EXPAND, 0, 0, null, null);
+    }
+
+    public void animateCollapse() {
+        post(CMD_COLLAPSE, 0, 0, null, null);
+    }
+
+    /**
+     * Append a command from a binder thread, and post a flush for the next frame
+     * tick if one isn't already coming.  The lock is only ever held to append or
+     * to take the whole list, never while anything else is done.
+     */
+    private void post(int op, int index, int arg, Object obj, Object obj2) {
+        final Command c = new Command(op, index, arg, obj, obj2);
+        synchronized (mIncoming) {
+            mIncoming.add(c);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Hand everything that came in to consume(), in order.  Returns how many
+     * commands there were.
+     */
+    private int drain() {
+        final ArrayList<Command> commands = mFlushCommands;
+        synchronized (mIncoming) {
+            commands.addAll(mIncoming);
+            mIncoming.clear();
+        }
+        final int N = commands.size();
+        if (N > mLargestDrain) {
+            mLargestDrain = N;
+        }
+        try {
+            for (int i=0; i<N; i++) {
+                consume(commands.get(i));
+            }
+        } finally {
+            commands.clear();
+        }
+        return N;
+    }
+
+    private void scheduleFlush() {
+        if (mFlushPosted.compareAndSet(false, true)) {
+            final long frame = StatusBarService.ANIM_FRAME_DURATION;
+            final long now = SystemClock.uptimeMillis();
+            mHandler.sendMessageAtTime(mHandler.obtainMessage(MSG_FLUSH),
+                    now - (now % frame) + frame);
+        }
+    }
+
+    private static long joinFingerprint(int high, int low) {
+        return ((long)high << 32) | (low & 0xffffffffL);
+    }
+
+    /**
+     * Merge a notification operation into the pending table so that only the
+     * newest state for each key is delivered per drain.  An add followed by a
+     * remove cancels out entirely, and an update followed by a remove becomes
+     * a plain remove.
+     */
+    private void coalesceNotification(int op, IBinder key,
+            StatusBarNotification notification, long fingerprint) {
+        NotificationQueueEntry ne = mPendingNotifications.get(key);
+        if (ne == null) {
+            ne = new NotificationQueueEntry();
+            ne.op = op;
             ne.key = key;
             ne.notification = notification;
-            mHandler.obtainMessage(MSG_UPDATE_NOTIFICATION, 0, 0, ne).sendToTarget();
+            ne.fingerprint = fingerprint;
+            ne.quiet = mGated;
+            mPendingNotifications.put(key, ne);
+            return;
         }
+
+        switch (ne.op) {
+            case OP_ADD_NOTIFICATION:
+                if (op == OP_REMOVE_NOTIFICATION) {
+                    // The main thread never saw this one; drop both.
+                    mPendingNotifications.remove(key);
+                    mDroppedNotificationUpdates += 2;
+                    return;
+                }
+                // Still an add as far as the main thread is concerned.
+                break;
+            case OP_UPDATE_NOTIFICATION:
+                if (op == OP_REMOVE_NOTIFICATION) {
+                    ne.op = OP_REMOVE_NOTIFICATION;
+                }
+                break;
+            case OP_REMOVE_NOTIFICATION:
+                // The main thread still has the old views, so a re-post is an update.
+                ne.op = (op == OP_REMOVE_NOTIFICATION)
+                        ? OP_REMOVE_NOTIFICATION : OP_UPDATE_NOTIFICATION;
+                break;
+        }
+        ne.notification = notification;
+        ne.fingerprint = fingerprint;
+        ne.quiet = mGated;
+        mDroppedNotificationUpdates++;
     }
 
-    public void removeNotification(IBinder key) {
-        synchronized (mList) {
-            mHandler.obtainMessage(MSG_REMOVE_NOTIFICATION, 0, 0, key).sendToTarget();
+    /**
+     * Called on the main thread to set one of our own slots without the round
+     * trip through the server, the way the server's setIcon would.  Returns false
+     * if there's no such slot.
+     */
+    boolean setLocalIcon(String slot, StatusBarIcon icon) {
+        final int index = mList.getSlotIndex(slot);
+        if (index < 0) {
+            return false;
         }
+        supersedePending(index);
+        applyIcon(index, OP_SET_ICON, icon);
+        return true;
     }
 
-    public void disable(int state) {
-        synchronized (mList) {
-            mHandler.removeMessages(MSG_DISABLE);
-            mHandler.obtainMessage(MSG_DISABLE, state, 0, null).sendToTarget();
+    /**
+     * Like setLocalIcon, for the server's setIconVisibility.
+     */
+    boolean setLocalIconVisibility(String slot, boolean visible) {
+        final int index = mList.getSlotIndex(slot);
+        if (index < 0) {
+            return false;
         }
+        supersedePending(index);
+        final StatusBarIcon old = mList.getIcon(index);
+        if (old != null && old.visible != visible) {
+            final StatusBarIcon icon = old.clone();
+            icon.visible = visible;
+            applyIcon(index, OP_SET_ICON, icon);
+        }
+        return true;
     }
 
-    public void animateExpand() {
-        synchronized (mList) {
-            mHandler.removeMessages(MSG_SET_VISIBILITY);
-            mHandler.obtainMessage(MSG_SET_VISIBILITY, OP_EXPAND, 0, null).sendToTarget();
+    private void supersedePending(int index) {
+        if (mPendingIcons.indexOfKey(index) >= 0) {
+            mPendingIcons.remove(index);
+            mSupersededIcons++;
         }
     }
 
-    public void animateCollapse() {
-        synchronized (mList) {
-            mHandler.removeMessages(MSG_SET_VISIBILITY);
-            mHandler.obtainMessage(MSG_SET_VISIBILITY, OP_COLLAPSE, 0, null).sendToTarget();
+    /**
+     * Called from any thread before a change to slot that was already shown is
+     * sent to the server, with what the server will send back for it.
+     */
+    void expectEcho(String slot, StatusBarIcon icon) {
+        final int index = mList.getSlotIndex(slot);
+        if (index < 0) {
+            return;
+        }
+        synchronized (mEchoes) {
+            ArrayList<StatusBarIcon> echoes = mEchoes.get(index);
+            if (echoes == null) {
+                echoes = new ArrayList<StatusBarIcon>();
+                mEchoes.put(index, echoes);
+            }
+            if (echoes.size() >= MAX_ECHOES) {
+                // never came back, e.g. someone else set the slot in between
+                echoes.remove(0);
+            }
+            echoes.add(icon);
         }
     }
 
-    private final class H extends Handler {
-        public void handleMessage(Message msg) {
-            final int what = msg.what & MSG_MASK;
-            switch (what) {
-                case MSG_ICON: {
-                    final int index = msg.what & INDEX_MASK;
-                    final int viewIndex = mList.getViewIndex(index);
-                    switch (msg.arg1) {
-                        case OP_SET_ICON: {
-                            StatusBarIcon icon = (StatusBarIcon)msg.obj;
-                            StatusBarIcon old = mList.getIcon(index);
-                            if (old == null) {
-                                mList.setIcon(index, icon);
-                                mCallbacks.addIcon(mList.getSlot(index), index, viewIndex, icon);
-                            } else {
-                                mList.setIcon(index, icon);
-                                mCallbacks.updateIcon(mList.getSlot(index), index, viewIndex,
-                                        old, icon);
-                            }
-                            break;
-                        }
-                        case OP_REMOVE_ICON:
-                            if (mList.getIcon(index) != null) {
-                                mList.removeIcon(index);
-                                mCallbacks.removeIcon(mList.getSlot(index), index, viewIndex);
-                            }
-                            break;
-                    }
-                    break;
+    /**
+     * Returns whether icon is the server sending back one of the changes from
+     * expectEcho, and forgets that one and the ones before it.
+     */
+    private boolean isEcho(int index, StatusBarIcon icon) {
+        synchronized (mEchoes) {
+            final ArrayList<StatusBarIcon> echoes = mEchoes.get(index);
+            if (echoes == null) {
+                return false;
+            }
+            final int N = echoes.size();
+            for (int i=0; i<N; i++) {
+                if (sameIcon(echoes.get(i), icon)) {
+                    echoes.subList(0, i + 1).clear();
+                    return true;
                 }
-                case MSG_ADD_NOTIFICATION: {
-                    final NotificationQueueEntry ne = (NotificationQueueEntry)msg.obj;
-                    mCallbacks.addNotification(ne.key, ne.notification);
-                    break;
+            }
+            return false;
+        }
+    }
+
+    private static boolean sameIcon(StatusBarIcon a, StatusBarIcon b) {
+        return a.iconId == b.iconId && a.iconLevel == b.iconLevel && a.visible == b.visible
+                && a.number == b.number
+                && (a.iconPackage == null ? b.iconPackage == null
+                        : a.iconPackage.equals(b.iconPackage));
+    }
+
+    private void collapseIcon(int index) {
+        if (mGated && mPendingIcons.indexOfKey(index) >= 0) {
+            mCollapsedGatedCommands++;
+        }
+    }
+
+    /**
+     * Called on the main thread.  Opening the gate delivers everything that piled
+     * up behind it right away, without tickers and without panel commands.
+     */
+    void setGated(boolean gated) {
+        if (mGated == gated) {
+            return;
+        }
+        if (!gated) {
+            mHandler.removeMessages(MSG_FLUSH);
+            // What hasn't been drained yet came in while gated, too.
+            flush();
+            mGated = false;
+            flush();
+            if (!mDeferredNotifications.isEmpty()) {
+                scheduleDeferredFlush(SystemClock.uptimeMillis());
+            }
+        } else {
+            mGated = true;
+        }
+    }
+
+    private void flush() {
+        // Clear the flag before draining, so that anything published after this
+        // point posts a new flush rather than being stranded in mIncoming.
+        mFlushPosted.set(false);
+        if (mGated) {
+            final int dropped = mDroppedNotificationUpdates;
+            mGatedCommands += drain();
+            mCollapsedGatedCommands += mDroppedNotificationUpdates - dropped;
+            if (mDisablePending) {
+                // Disable flags gate what the user may do with the bar, so they
+                // don't wait.
+                mDisablePending = false;
+                mCallbacks.disable(mPendingDisable);
+            }
+            if (mPendingVisibility != 0) {
+                // Nobody can see the panel, and opening it when the screen comes
+                // back on would only be a surprise.
+                mPendingVisibility = 0;
+                mDroppedPanelCommands++;
+            }
+            return;
+        }
+        drain();
+        mBatches++;
+
+        final SparseArray<StatusBarIcon> icons = mPendingIcons;
+        final ArrayList<NotificationQueueEntry> notifications = mFlushNotifications;
+        notifications.addAll(mPendingNotifications.values());
+        mPendingNotifications.clear();
+        final boolean disablePending = mDisablePending;
+        final int disable = mPendingDisable;
+        mDisablePending = false;
+        final int visibility = mPendingVisibility;
+        mPendingVisibility = 0;
+
+        mCallbacks.beginBatch();
+        try {
+            int N = icons.size();
+            for (int i=0; i<N; i++) {
+                final int index = icons.keyAt(i);
+                final StatusBarIcon icon = icons.valueAt(i);
+                applyIcon(index, icon != null ? OP_SET_ICON : OP_REMOVE_ICON, icon);
+            }
+            final long now = SystemClock.uptimeMillis();
+            N = notifications.size();
+            for (int i=0; i<N; i++) {
+                throttleNotification(notifications.get(i), now);
+            }
+            if (disablePending) {
+                mCallbacks.disable(disable);
+            }
+            if (visibility == OP_EXPAND) {
+                mCallbacks.animateExpand();
+            } else if (visibility == OP_COLLAPSE) {
+                mCallbacks.animateCollapse();
+            }
+        } finally {
+            icons.clear();
+            notifications.clear();
+            mCallbacks.endBatch();
+        }
+    }
+
+    /**
+     * Deliver ne now if its package is within its budget, otherwise park it in
+     * mDeferredNotifications until a token frees up.  Removes and adds with a
+     * fullScreenIntent (an incoming call, an alarm) are never delayed.
+     */
+    private void throttleNotification(NotificationQueueEntry ne, long now) {
+        final NotificationQueueEntry deferred = mDeferredNotifications.remove(ne.key);
+        if (ne.op == OP_REMOVE_NOTIFICATION) {
+            if (deferred != null && deferred.op == OP_ADD_NOTIFICATION) {
+                // The add was never delivered, so there is nothing to remove.
+                return;
+            }
+            deliverNotification(ne);
+            return;
+        }
+        if (deferred != null && deferred.op == OP_ADD_NOTIFICATION) {
+            ne.op = OP_ADD_NOTIFICATION;
+        }
+        if (ne.op == OP_ADD_NOTIFICATION && ne.notification.notification.fullScreenIntent != null) {
+            if (mRateLimiter != null) {
+                mRateLimiter.noteExempt(ne.notification.pkg, now);
+            }
+            deliverNotification(ne);
+            return;
+        }
+        if (mRateLimiter == null || mRateLimiter.tryAcquire(ne.notification.pkg, now)) {
+            deliverNotification(ne);
+            return;
+        }
+        mDeferredNotifications.put(ne.key, ne);
+        scheduleDeferredFlush(now);
+    }
+
+    private void scheduleDeferredFlush(long now) {
+        if (mHandler.hasMessages(MSG_FLUSH_DEFERRED)) {
+            return;
+        }
+        long delay = Long.MAX_VALUE;
+        for (NotificationQueueEntry ne : mDeferredNotifications.values()) {
+            final long d = mRateLimiter.delayUntilToken(ne.notification.pkg, now);
+            if (d < delay) {
+                delay = d;
+            }
+        }
+        if (delay != Long.MAX_VALUE) {
+            mHandler.sendEmptyMessageAtTime(MSG_FLUSH_DEFERRED, now + delay);
+        }
+    }
+
+    /**
+     * Deliver the deferred adds and updates whose packages have regained a token.
+     */
+    private void flushDeferred() {
+        if (mGated) {
+            // setGated(false) reschedules this.
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final ArrayList<NotificationQueueEntry> notifications = mFlushNotifications;
+        final Iterator<NotificationQueueEntry> it = mDeferredNotifications.values().iterator();
+        while (it.hasNext()) {
+            final NotificationQueueEntry ne = it.next();
+            if (mRateLimiter.tryAcquire(ne.notification.pkg, now)) {
+                it.remove();
+                notifications.add(ne);
+            }
+        }
+
+        mCallbacks.beginBatch();
+        try {
+            final int N = notifications.size();
+            for (int i=0; i<N; i++) {
+                deliverNotification(notifications.get(i));
+            }
+        } finally {
+            notifications.clear();
+            mCallbacks.endBatch();
+        }
+        if (!mDeferredNotifications.isEmpty()) {
+            scheduleDeferredFlush(now);
+        }
+    }
+
+    private void deliverNotification(NotificationQueueEntry ne) {
+        switch (ne.op) {
+            case OP_ADD_NOTIFICATION:
+                mCallbacks.addNotification(ne.key, ne.notification, ne.fingerprint, ne.quiet);
+                break;
+            case OP_UPDATE_NOTIFICATION:
+                mCallbacks.updateNotification(ne.key, ne.notification, ne.fingerprint,
+                        ne.quiet);
+                break;
+            case OP_REMOVE_NOTIFICATION:
+                mCallbacks.removeNotification(ne.key);
+                break;
+        }
+    }
+
+    private void applyIcon(int index, int op, StatusBarIcon icon) {
+        final int viewIndex = mList.getViewIndex(index);
+        switch (op) {
+            case OP_SET_ICON: {
+                StatusBarIcon old = mList.getIcon(index);
+                if (old == null) {
+                    mList.setIcon(index, icon);
+                    mCallbacks.addIcon(mList.getSlot(index), index, viewIndex, icon);
+                } else {
+                    mList.setIcon(index, icon);
+                    mCallbacks.updateIcon(mList.getSlot(index), index, viewIndex,
+                            old, icon);
                 }
-                case MSG_UPDATE_NOTIFICATION: {
-                    final NotificationQueueEntry ne = (NotificationQueueEntry)msg.obj;
-                    mCallbacks.updateNotification(ne.key, ne.notification);
-                    break;
+                break;
+            }
+            case OP_REMOVE_ICON:
+                if (mList.getIcon(index) != null) {
+                    mList.removeIcon(index);
+                    mCallbacks.removeIcon(mList.getSlot(index), index, viewIndex);
                 }
-                case MSG_REMOVE_NOTIFICATION: {
-                    mCallbacks.removeNotification((IBinder)msg.obj);
+                break;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  CommandQueue:");
+        synchronized (mIncoming) {
+            pw.println("    incoming=" + mIncoming.size() + " largestDrain=" + mLargestDrain);
+        }
+        pw.println("    droppedNotificationUpdates=" + mDroppedNotificationUpdates
+                + " deferredNotifications=" + mDeferredNotifications.size());
+        pw.println("    batches=" + mBatches + " batchedCommands=" + mBatchedCommands);
+        pw.println("    gated=" + mGated + " gatedCommands=" + mGatedCommands
+                + " collapsedGatedCommands=" + mCollapsedGatedCommands
+                + " droppedPanelCommands=" + mDroppedPanelCommands);
+        synchronized (mEchoes) {
+            int echoes = 0;
+            for (int i=0; i<mEchoes.size(); i++) {
+                echoes += mEchoes.valueAt(i).size();
+            }
+            pw.println("    expectedEchoes=" + echoes + " droppedEchoes=" + mDroppedEchoes
+                    + " supersededIcons=" + mSupersededIcons);
+        }
+    }
+
+    private final class H extends Handler {
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_FLUSH:
+                    flush();
                     break;
-                }
-                case MSG_DISABLE:
-                    mCallbacks.disable(msg.arg1);
+                case MSG_FLUSH_DEFERRED:
+                    flushDeferred();
                     break;
-                case MSG_SET_VISIBILITY:
-                    if (msg.arg1 == OP_EXPAND) {
-                        mCallbacks.animateExpand();
-                    } else {
-                        mCallbacks.animateCollapse();
-                    }
             }
         }
     }
 }
-
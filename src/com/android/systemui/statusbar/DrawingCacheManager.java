@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.view.View;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hands out view drawing caches under a byte budget.  A view only gets a
+ * drawing cache while it holds a grant; when the budget runs out the least
+ * recently requested views lose theirs.  Sizes are estimated as 32 bits per
+ * pixel of the view's current size.  Used on the main thread only.
+ */
+final class DrawingCacheManager {
+    /**
+     * Told about every change in the bytes held on behalf of an owner.
+     */
+    interface Listener {
+        void onCacheBytesChanged(int owner, int delta);
+    }
+
+    private static final class Grant {
+        int bytes;
+        int owner;
+    }
+
+    private final int mBudgetBytes;
+    private final Listener mListener;
+    // in access order
+    private final LinkedHashMap<View, Grant> mGrants = new LinkedHashMap<View, Grant>(16, 0.75f, true);
+    private int mBytes;
+    private int mMaxBytes;
+    private int mEvictions;
+
+    DrawingCacheManager(int budgetBytes, Listener listener) {
+        mBudgetBytes = budgetBytes;
+        mListener = listener;
+    }
+
+    /**
+     * Give view a drawing cache, or mark it as just used if it has one.  Views
+     * that haven't been laid out yet count as free until they're requested again.
+     * The bytes are accounted to owner.
+     */
+    void request(View view, int owner) {
+        final int bytes = view.getWidth() * view.getHeight() * 4;
+        Grant g = mGrants.get(view);
+        if (g == null) {
+            g = new Grant();
+            g.owner = owner;
+            mGrants.put(view, g);
+            view.setDrawingCacheEnabled(true);
+        }
+        changeBytes(g, bytes - g.bytes);
+        trim(view);
+        if (mBytes > mMaxBytes) {
+            mMaxBytes = mBytes;
+        }
+    }
+
+    /**
+     * Take the drawing cache away from view, if it has one.
+     */
+    void release(View view) {
+        final Grant g = mGrants.remove(view);
+        if (g != null) {
+            changeBytes(g, -g.bytes);
+            disable(view);
+        }
+    }
+
+    void releaseAll() {
+        for (Map.Entry<View, Grant> e : mGrants.entrySet()) {
+            final Grant g = e.getValue();
+            changeBytes(g, -g.bytes);
+            disable(e.getKey());
+        }
+        mGrants.clear();
+    }
+
+    private void changeBytes(Grant g, int delta) {
+        if (delta != 0) {
+            g.bytes += delta;
+            mBytes += delta;
+            mListener.onCacheBytesChanged(g.owner, delta);
+        }
+    }
+
+    private void trim(View keep) {
+        final Iterator<Map.Entry<View, Grant>> it = mGrants.entrySet().iterator();
+        while (mBytes > mBudgetBytes && it.hasNext()) {
+            final Map.Entry<View, Grant> e = it.next();
+            final View view = e.getKey();
+            if (view == keep) {
+                // the newest one; everything older is gone already
+                break;
+            }
+            it.remove();
+            changeBytes(e.getValue(), -e.getValue().bytes);
+            mEvictions++;
+            disable(view);
+        }
+    }
+
+    private static void disable(View view) {
+        view.setDrawingCacheEnabled(false);
+        view.destroyDrawingCache();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  DrawingCacheManager: views=" + mGrants.size() + " bytes=" + mBytes
+                + " maxBytes=" + mMaxBytes + " budget=" + mBudgetBytes
+                + " evictions=" + mEvictions);
+    }
+}
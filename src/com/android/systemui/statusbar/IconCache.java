@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+import com.android.systemui.R;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Resources of the packages that post icons, and the constant states of
+ * the icons loaded from them, so that setting an icon that was shown before
+ * takes neither a package manager call nor a decode.  The drawables are kept
+ * within a byte budget, least recently used first out.  Entries of a package
+ * have to be dropped with invalidate() when it is replaced or removed.
+ */
+final class IconCache {
+    private static final class Key {
+        String pkg; // null for our own resources
+        int iconId;
+
+        Key(String pkg, int iconId) {
+            this.pkg = pkg;
+            this.iconId = iconId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key k = (Key)o;
+            return iconId == k.iconId && (pkg == null ? k.pkg == null : pkg.equals(k.pkg));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * iconId + (pkg == null ? 0 : pkg.hashCode());
+        }
+    }
+
+    private static final class CachedIcon {
+        Drawable.ConstantState state;
+        int bytes;
+        long decodeNanos;
+    }
+
+    // what a drawable without intrinsic size is counted as
+    private static final int UNKNOWN_DRAWABLE_BYTES = 1024;
+
+    private static IconCache sInstance;
+
+    private final int mBudgetBytes;
+    private final HashMap<String, Resources> mResources = new HashMap<String, Resources>();
+    // in access order, so the eldest entry is the least recently used icon
+    private final LinkedHashMap<Key, CachedIcon> mDrawables
+            = new LinkedHashMap<Key, CachedIcon>(32, 0.75f, true);
+    // reused for lookups, under the lock
+    private final Key mLookupKey = new Key(null, 0);
+    private int mBytes;
+    private int mResourcesHits;
+    private int mResourcesMisses;
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+    private long mDecodeNanos;
+    private long mSavedNanos;
+
+    private IconCache(int budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    static synchronized IconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new IconCache(context.getResources().getInteger(
+                    R.integer.config_iconDrawableCacheKb) * 1024);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the Resources of pkg, from the package manager the first time.
+     */
+    Resources getResources(Context context, String pkg)
+            throws PackageManager.NameNotFoundException {
+        synchronized (this) {
+            final Resources r = mResources.get(pkg);
+            if (r != null) {
+                mResourcesHits++;
+                return r;
+            }
+            mResourcesMisses++;
+        }
+        // don't hold the lock over the binder call
+        final Resources r = context.getPackageManager().getResourcesForApplication(pkg);
+        synchronized (this) {
+            mResources.put(pkg, r);
+        }
+        return r;
+    }
+
+    /**
+     * Returns a new drawable for the icon if its constant state is cached, or null.
+     */
+    synchronized Drawable getDrawable(String pkg, int iconId) {
+        mLookupKey.pkg = pkg;
+        mLookupKey.iconId = iconId;
+        final CachedIcon e = mDrawables.get(mLookupKey);
+        mLookupKey.pkg = null;
+        if (e == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        mSavedNanos += e.decodeNanos;
+        return e.state.newDrawable();
+    }
+
+    /**
+     * Keep the constant state of a drawable just loaded, and what it took to load it.
+     */
+    synchronized void putDrawable(String pkg, int iconId, Drawable d, long decodeNanos) {
+        mDecodeNanos += decodeNanos;
+        final Drawable.ConstantState state = d.getConstantState();
+        if (state == null) {
+            return;
+        }
+        final CachedIcon e = new CachedIcon();
+        e.state = state;
+        e.bytes = estimateBytes(d);
+        e.decodeNanos = decodeNanos;
+        if (e.bytes > mBudgetBytes) {
+            return;
+        }
+        final CachedIcon old = mDrawables.put(new Key(pkg, iconId), e);
+        if (old != null) {
+            mBytes -= old.bytes;
+        }
+        mBytes += e.bytes;
+        final Iterator<CachedIcon> it = mDrawables.values().iterator();
+        while (mBytes > mBudgetBytes && it.hasNext()) {
+            mBytes -= it.next().bytes;
+            it.remove();
+            mEvictions++;
+        }
+    }
+
+    private static int estimateBytes(Drawable d) {
+        if (d instanceof BitmapDrawable) {
+            final Bitmap b = ((BitmapDrawable)d).getBitmap();
+            if (b != null) {
+                return b.getRowBytes() * b.getHeight();
+            }
+        }
+        final int w = d.getIntrinsicWidth();
+        final int h = d.getIntrinsicHeight();
+        return w > 0 && h > 0 ? w * h * 4 : UNKNOWN_DRAWABLE_BYTES;
+    }
+
+    /**
+     * Drop the Resources and icons of pkg.
+     */
+    synchronized void invalidate(String pkg) {
+        mResources.remove(pkg);
+        final Iterator<Map.Entry<Key, CachedIcon>> it = mDrawables.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Key, CachedIcon> e = it.next();
+            if (pkg.equals(e.getKey().pkg)) {
+                mBytes -= e.getValue().bytes;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop everything, after a theme or configuration change.
+     */
+    synchronized void clear() {
+        mResources.clear();
+        mDrawables.clear();
+        mBytes = 0;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        final int lookups = mHits + mMisses;
+        pw.println("  IconCache: icons=" + mDrawables.size() + " bytes=" + mBytes + "/"
+                + mBudgetBytes + " hits=" + mHits + " misses=" + mMisses
+                + " hitRate=" + (lookups > 0 ? (mHits * 100 / lookups) + "%" : "-")
+                + " evictions=" + mEvictions);
+        pw.println("    decodeMs=" + (mDecodeNanos / 1000000) + " savedMs=" + (mSavedNanos / 1000000)
+                + " packages=" + mResources.size() + " resourcesHits=" + mResourcesHits
+                + " resourcesMisses=" + mResourcesMisses);
+    }
+}
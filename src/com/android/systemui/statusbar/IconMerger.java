@@ -21,6 +21,7 @@ import android.os.Handler;
 import android.util.AttributeSet;
 import android.util.Slog;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.LinearLayout;
 
 import com.android.internal.statusbar.StatusBarIcon;
@@ -28,12 +29,16 @@ import com.android.internal.statusbar.StatusBarIcon;
 import com.android.systemui.R;
 
 
-public class IconMerger extends LinearLayout {
+public class IconMerger extends LinearLayout implements ViewGroup.OnHierarchyChangeListener {
     private static final String TAG = "IconMerger";
 
     private int mIconSize;
     private StatusBarIconView mMoreView;
     private StatusBarIcon mMoreIcon = new StatusBarIcon(null, R.drawable.stat_notify_more, 0);
+    // widths and counts of the children, the more view counting as empty
+    private final IconOverflow mOverflow = new IconOverflow();
+    // the first child whose width or count may have changed since the last layout
+    private int mDirtyIndex;
 
     public IconMerger(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -41,6 +46,7 @@ public class IconMerger extends LinearLayout {
         mIconSize = context.getResources().getDimensionPixelSize(
                 com.android.internal.R.dimen.status_bar_icon_size);
 
+        setOnHierarchyChangeListener(this);
         mMoreView = new StatusBarIconView(context, "more");
         mMoreView.set(mMoreIcon);
         addView(mMoreView, 0, new LinearLayout.LayoutParams(mIconSize, mIconSize));
@@ -53,88 +59,91 @@ public class IconMerger extends LinearLayout {
         addView(v, index, new LinearLayout.LayoutParams(mIconSize, mIconSize));
     }
 
+    public void onChildViewAdded(View parent, View child) {
+        markDirty(child);
+    }
+
+    public void onChildViewRemoved(View parent, View child) {
+        // called before the child is taken out, so it still has its index
+        markDirty(child);
+    }
+
+    /**
+     * Called by a child icon whose visibility or number changed.
+     */
+    void onIconChanged(StatusBarIconView icon) {
+        if (icon != mMoreView) {
+            markDirty(icon);
+        }
+    }
+
+    private void markDirty(View child) {
+        final int index = indexOfChild(child);
+        if (index >= 0 && index < mDirtyIndex) {
+            mDirtyIndex = index;
+        }
+    }
+
     @Override
     protected void onLayout(boolean changed, int l, int t, int r, int b) {
         super.onLayout(changed, l, t, r, b);
 
-        final int maxWidth = r - l;
+        final StatusBarIconView moreView = mMoreView;
         final int N = getChildCount();
-        int i;
-
-        // get the rightmost one, and see if we even need to do anything
-        int fitRight = -1;
-        for (i=N-1; i>=0; i--) {
-            final View child = getChildAt(i);
-            if (child.getVisibility() != GONE) {
-                fitRight = child.getRight();
-                break;
-            }
+        if (N == 0 || getChildAt(0) != moreView) {
+            return;
         }
 
-        // find the first visible one that isn't the more icon
-        final StatusBarIconView moreView = mMoreView;
-        int fitLeft = -1;
-        int startIndex = -1;
-        for (i=0; i<N; i++) {
+        // Pick up the children from the first one that changed.  Everything before
+        // it is where it was, so its running sums still hold.
+        final IconOverflow overflow = mOverflow;
+        overflow.setSize(N);
+        for (int i=Math.max(mDirtyIndex, 1); i<N; i++) {
             final View child = getChildAt(i);
-            if (child == moreView) {
-                startIndex = i+1;
-            }
-            else if (child.getVisibility() != GONE) {
-                fitLeft = child.getLeft();
-                break;
+            if (child.getVisibility() == GONE) {
+                overflow.set(i, 0, 0);
+            } else {
+                final StatusBarIcon icon = ((StatusBarIconView)child).getStatusBarIcon();
+                final int n = icon != null ? icon.number : 0;
+                overflow.set(i, child.getMeasuredWidth(), n == 0 ? 1 : (n > 0 ? n : 0));
             }
         }
-
-        if (moreView == null || startIndex < 0) {
-            return;
-            /*
-            throw new RuntimeException("Status Bar / IconMerger moreView == " + moreView
-                    + " startIndex=" + startIndex);
-            */
-        }
-        
-        // if it fits without the more icon, then hide the more icon and update fitLeft
-        // so everything gets pushed left
-        int adjust = 0;
-        if (fitRight - fitLeft <= maxWidth) {
-            adjust = fitLeft - moreView.getLeft();
-            fitLeft -= adjust;
-            fitRight -= adjust;
+        mDirtyIndex = N;
+
+        // If it fits without the more icon, hide the more icon and push everything
+        // left.  Otherwise hide the icons on the left until the rest fits.
+        final int total = overflow.widthBefore(N);
+        final int fitLeft = moreView.getRight();
+        int firstShown;
+        int shift;
+        int number;
+        if (total <= r - l - getPaddingLeft() - getPaddingRight()) {
             moreView.layout(0, moreView.getTop(), 0, moreView.getBottom());
+            firstShown = 1;
+            shift = fitLeft - moreView.getLeft();
+            number = 0;
+        } else {
+            final int extra = fitLeft + total - (r - l - getPaddingRight());
+            firstShown = overflow.firstFitting(1, extra);
+            shift = overflow.widthBefore(firstShown);
+            number = overflow.countBefore(firstShown);
         }
-        int extra = fitRight - r;
-        int shift = -1;
-
-        int breakingPoint = fitLeft + extra + adjust;
-        int number = 0;
-        for (i=startIndex; i<N; i++) {
-            final StatusBarIconView child = (StatusBarIconView)getChildAt(i);
-            if (child.getVisibility() != GONE) {
-                int childLeft = child.getLeft();
-                int childRight = child.getRight();
-                if (childLeft < breakingPoint) {
-                    // hide this one
-                    child.layout(0, child.getTop(), 0, child.getBottom());
-                    int n = child.getStatusBarIcon().number;
-                    if (n == 0) {
-                        number += 1;
-                    } else if (n > 0) {
-                        number += n;
-                    }
-                } else {
-                    // decide how much to shift by
-                    if (shift < 0) {
-                        shift = childLeft - fitLeft;
-                    }
-                    // shift this left by shift
-                    child.layout(childLeft-shift, child.getTop(),
-                                    childRight-shift, child.getBottom());
-                }
+        for (int i=1; i<N; i++) {
+            final View child = getChildAt(i);
+            if (child.getVisibility() == GONE) {
+                continue;
+            }
+            if (i < firstShown) {
+                child.layout(0, child.getTop(), 0, child.getBottom());
+            } else if (shift != 0) {
+                child.layout(child.getLeft() - shift, child.getTop(),
+                        child.getRight() - shift, child.getBottom());
             }
         }
 
-        mMoreIcon.number = number;
-        mMoreView.set(mMoreIcon);
+        if (number != mMoreIcon.number) {
+            mMoreIcon.number = number;
+            mMoreView.set(mMoreIcon);
+        }
     }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+/**
+ * The widths and notification counts of a row of icons, with running sums
+ * that are kept up to date from the first changed index on, so that finding
+ * which icons overflow on the left takes a binary search instead of a pass
+ * over all of them.  Nothing is allocated except when the row outgrows the
+ * arrays.  Plain data, so it can be exercised off the device.
+ */
+final class IconOverflow {
+    private int mSize;
+    private int[] mWidths = new int[16];
+    private int[] mCounts = new int[16];
+    // mWidthSums[i] and mCountSums[i] cover the items before i; right up to mValid
+    private int[] mWidthSums = new int[17];
+    private int[] mCountSums = new int[17];
+    private int mValid;
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Resize the row; new items are empty until set.
+     */
+    void setSize(int size) {
+        while (size > mWidths.length) {
+            grow();
+        }
+        for (int i=mSize; i<size; i++) {
+            mWidths[i] = 0;
+            mCounts[i] = 0;
+        }
+        invalidateFrom(Math.min(mSize, size));
+        mSize = size;
+    }
+
+    /**
+     * Returns whether the item changed.
+     */
+    boolean set(int index, int width, int count) {
+        if (mWidths[index] == width && mCounts[index] == count) {
+            return false;
+        }
+        mWidths[index] = width;
+        mCounts[index] = count;
+        invalidateFrom(index);
+        return true;
+    }
+
+    private void invalidateFrom(int index) {
+        if (index < mValid) {
+            mValid = index;
+        }
+    }
+
+    private void grow() {
+        final int n = mWidths.length * 2;
+        final int[] widths = new int[n];
+        final int[] counts = new int[n];
+        final int[] widthSums = new int[n + 1];
+        final int[] countSums = new int[n + 1];
+        System.arraycopy(mWidths, 0, widths, 0, mSize);
+        System.arraycopy(mCounts, 0, counts, 0, mSize);
+        System.arraycopy(mWidthSums, 0, widthSums, 0, mValid + 1);
+        System.arraycopy(mCountSums, 0, countSums, 0, mValid + 1);
+        mWidths = widths;
+        mCounts = counts;
+        mWidthSums = widthSums;
+        mCountSums = countSums;
+    }
+
+    private void updateSums() {
+        for (int i=mValid; i<mSize; i++) {
+            mWidthSums[i + 1] = mWidthSums[i] + mWidths[i];
+            mCountSums[i + 1] = mCountSums[i] + mCounts[i];
+        }
+        mValid = mSize;
+    }
+
+    /**
+     * Returns the width of the items before index.
+     */
+    int widthBefore(int index) {
+        updateSums();
+        return mWidthSums[index];
+    }
+
+    /**
+     * Returns the count of the items before index.
+     */
+    int countBefore(int index) {
+        updateSums();
+        return mCountSums[index];
+    }
+
+    /**
+     * Returns the index of the first item that starts at or after offset, counted
+     * from the left of item from; the items in between overflow.
+     */
+    int firstFitting(int from, int offset) {
+        updateSums();
+        final int target = mWidthSums[from] + offset;
+        int lo = from;
+        int hi = mSize;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mWidthSums[mid] < target) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -135,6 +135,32 @@ public class LatestItemContainer extends LinearLayout {
         scrollTo(0, 0);
     }
 
+    /**
+     * Put a detached row back into the state it was inflated in, so it can be
+     * reused for another notification.
+     */
+    void prepareForReuse() {
+        if (mSwipeCallback != null) {
+            mHandler.removeCallbacks(mSwipeCallback);
+        }
+        clearAnimation();
+        reset();
+        setVisibility(VISIBLE);
+        mEventsControlledByDispatcher = false;
+        mDispatcher = null;
+        mSwipeCallback = null;
+    }
+
+    /**
+     * Switch a swipeable row over to a new dispatcher, after the panel it
+     * belongs to has been rebuilt.
+     */
+    void updateDispatcher(ItemTouchDispatcher dispatcher) {
+        if (mDispatcher != null) {
+            mDispatcher = dispatcher;
+        }
+    }
+
     public void setOnSwipeCallback(ItemTouchDispatcher dispatcher, Runnable callback) {
         mDispatcher = dispatcher;
         mSwipeCallback = callback;
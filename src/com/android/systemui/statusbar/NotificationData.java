@@ -23,9 +23,11 @@ import android.view.View;
 import com.android.internal.statusbar.StatusBarNotification;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 
 /**
- * The list of currently displaying notifications.
+ * The list of currently displaying notifications, ordered by when.  Entries
+ * are also indexed by key so lookups don't have to scan the list.
  */
 public class NotificationData {
     public static final class Entry {
@@ -34,9 +36,19 @@ public class NotificationData {
         public StatusBarIconView icon;
         public View row; // the outer expanded view
         public View content; // takes the click events and sends the PendingIntent
-        public View expanded; // the inflated RemoteViews
+        public View expanded; // the inflated RemoteViews, or null while the row is unbound
+        long when; // the sort key, fixed when the entry is added
+        int queuedWork; // StatusBarService.WORK_* items queued for this entry
+        long fingerprint; // NotificationFingerprint of notification, if known
+        int costSlot; // PackageCostStats slot of the package
+        int rowBytes; // estimated bytes held by expanded, accounted in PackageCostStats
+        boolean digested; // row and icon hidden behind the digest summary of the package
     }
     private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private final IdentityHashMap<IBinder, Entry> mKeyIndex = new IdentityHashMap<IBinder, Entry>();
+    // running counts backing hasVisibleItems() and hasClearableItems()
+    private int mVisibleCount;
+    private int mClearableCount;
 
     public int size() {
         return mEntries.size();
@@ -47,14 +59,18 @@ public class NotificationData {
     }
 
     public int findEntry(IBinder key) {
-        final int N = mEntries.size();
-        for (int i=0; i<N; i++) {
-            Entry entry = mEntries.get(i);
-            if (entry.key == key) {
-                return i;
-            }
+        final Entry entry = mKeyIndex.get(key);
+        if (entry == null) {
+            return -1;
         }
-        return -1;
+        return indexOf(entry);
+    }
+
+    /**
+     * Returns the entry for key, or null.
+     */
+    public Entry getEntry(IBinder key) {
+        return mKeyIndex.get(key);
     }
 
     public int add(IBinder key, StatusBarNotification notification, View row, View content,
@@ -66,65 +82,108 @@ public class NotificationData {
         entry.content = content;
         entry.expanded = expanded;
         entry.icon = icon;
-        final int index = chooseIndex(notification.notification.when);
+        entry.when = notification.notification.when;
+        final int index = chooseIndex(entry.when);
         mEntries.add(index, entry);
+        mKeyIndex.put(key, entry);
+        count(entry, 1);
         return index;
     }
 
+    /**
+     * Replace the notification of an entry in place.  The caller guarantees
+     * that when hasn't changed, so the entry keeps its position.
+     */
+    public void setNotification(Entry entry, StatusBarNotification notification) {
+        count(entry, -1);
+        entry.notification = notification;
+        count(entry, 1);
+    }
+
     public Entry remove(IBinder key) {
-        final int N = mEntries.size();
-        for (int i=0; i<N; i++) {
-            Entry entry = mEntries.get(i);
-            if (entry.key == key) {
-                mEntries.remove(i);
-                return entry;
-            }
+        final Entry entry = mKeyIndex.remove(key);
+        if (entry == null) {
+            return null;
         }
-        return null;
+        mEntries.remove(indexOf(entry));
+        count(entry, -1);
+        return entry;
     }
 
     void clear() {
         mEntries.clear();
+        mKeyIndex.clear();
+        mVisibleCount = 0;
+        mClearableCount = 0;
     }
 
+    private void count(Entry entry, int delta) {
+        // Entries only get here once their row inflated successfully.  expanded
+        // can come and go as the panel binds and unbinds rows, so don't look at it.
+        if (entry.row != null) {
+            mVisibleCount += delta;
+            if ((entry.notification.notification.flags & Notification.FLAG_NO_CLEAR) == 0) {
+                mClearableCount += delta;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the first entry whose when is greater than the
+     * given one, so that entries with equal times stay in arrival order.
+     */
     private int chooseIndex(final long when) {
+        int lo = 0;
+        int hi = mEntries.size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mEntries.get(mid).when > when) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    private int indexOf(Entry entry) {
+        // find the first entry with the same when, then walk the (usually
+        // single element) run of equal times for this exact entry
+        final long when = entry.when;
+        int lo = 0;
+        int hi = mEntries.size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mEntries.get(mid).when < when) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
         final int N = mEntries.size();
-        for (int i=0; i<N; i++) {
-            Entry entry = mEntries.get(i);
-            if (entry.notification.notification.when > when) {
+        for (int i=lo; i<N; i++) {
+            final Entry e = mEntries.get(i);
+            if (e == entry) {
                 return i;
             }
+            if (e.when != when) {
+                break;
+            }
         }
-        return N;
+        throw new IllegalStateException("NotificationData index out of sync for " + entry.key);
     }
 
     /**
      * Return whether there are any visible items (i.e. items without an error).
      */
     public boolean hasVisibleItems() {
-        final int N = mEntries.size();
-        for (int i=0; i<N; i++) {
-            Entry entry = mEntries.get(i);
-            if (entry.expanded != null) { // the view successfully inflated
-                return true;
-            }
-        }
-        return false;
+        return mVisibleCount > 0;
     }
 
     /**
      * Return whether there are any clearable items (that aren't errors).
      */
     public boolean hasClearableItems() {
-        final int N = mEntries.size();
-        for (int i=0; i<N; i++) {
-            Entry entry = mEntries.get(i);
-            if (entry.expanded != null) { // the view successfully inflated
-                if ((entry.notification.notification.flags & Notification.FLAG_NO_CLEAR) == 0) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return mClearableCount > 0;
     }
 }
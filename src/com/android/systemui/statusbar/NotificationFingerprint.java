@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.app.PendingIntent;
+import android.os.Parcel;
+import android.widget.RemoteViews;
+
+import com.android.internal.statusbar.StatusBarNotification;
+
+/**
+ * A cheap structural hash of the parts of a notification that end up in its
+ * row: the content RemoteViews with all of its actions, and the content
+ * intent.  It is computed on the binder thread that delivers the notification,
+ * so that the main thread can tell a re-post of identical content from a real
+ * update without touching any views.
+ */
+final class NotificationFingerprint {
+    /** Never matches anything, including itself. */
+    static final long UNKNOWN = 0;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private NotificationFingerprint() {
+    }
+
+    static long compute(StatusBarNotification notification) {
+        final RemoteViews contentView = notification.notification.contentView;
+        if (contentView == null) {
+            return UNKNOWN;
+        }
+        final Parcel p = Parcel.obtain();
+        try {
+            // Flattening the RemoteViews writes every action in order, so equal
+            // parcels mean reapply would be a no-op.  Binders (the PendingIntents)
+            // are written as handles, which are stable for the same remote object.
+            contentView.writeToParcel(p, 0);
+            PendingIntent.writePendingIntentOrNullToParcel(
+                    notification.notification.contentIntent, p);
+            final int size = p.dataSize();
+            p.setDataPosition(0);
+            long hash = FNV_OFFSET_BASIS;
+            for (int i=0; i<size; i+=4) {
+                hash ^= p.readInt() & 0xffffffffL;
+                hash *= FNV_PRIME;
+            }
+            hash ^= size;
+            hash *= FNV_PRIME;
+            return hash != UNKNOWN ? hash : 1;
+        } catch (RuntimeException e) {
+            // Something in there can't be flattened; just never match.
+            return UNKNOWN;
+        } finally {
+            p.recycle();
+        }
+    }
+}
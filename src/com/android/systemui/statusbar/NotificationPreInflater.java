@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Slog;
+import android.view.View;
+import android.widget.FrameLayout;
+import android.widget.RemoteViews;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Inflates RemoteViews into detached views on a few background threads, and
+ * hands the results back on the main thread in one go.  The views are not
+ * attached to anything until the main thread adds them, so nothing else can
+ * see them while they are being built.
+ */
+final class NotificationPreInflater {
+    private static final String TAG = "StatusBar.NotificationPreInflater";
+
+    // The views a notification layout may use that neither make a Handler nor
+    // remember their thread when they're constructed.  Layouts with anything
+    // else (Chronometer, ViewFlipper, ProgressBar, ...) are left for the main
+    // thread.
+    private static final HashSet<String> THREAD_AGNOSTIC_TAGS = new HashSet<String>();
+    static {
+        THREAD_AGNOSTIC_TAGS.add("View");
+        THREAD_AGNOSTIC_TAGS.add("FrameLayout");
+        THREAD_AGNOSTIC_TAGS.add("LinearLayout");
+        THREAD_AGNOSTIC_TAGS.add("RelativeLayout");
+        THREAD_AGNOSTIC_TAGS.add("TextView");
+        THREAD_AGNOSTIC_TAGS.add("ImageView");
+        THREAD_AGNOSTIC_TAGS.add("ImageButton");
+        THREAD_AGNOSTIC_TAGS.add("Button");
+    }
+
+    interface Callback {
+        /**
+         * Called on the main thread.  views[i] is null where remoteViews[i] couldn't
+         * be inflated off the main thread; otherwise nanos[i] is what it took.
+         */
+        void onInflated(RemoteViews[] remoteViews, View[] views, long[] nanos,
+                long elapsedMillis);
+    }
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler();
+    private final HandlerThread[] mThreads;
+    private final Handler[] mWorkers;
+    private int mGeneration; // main thread only
+
+    NotificationPreInflater(Context context, int threads) {
+        mContext = context;
+        mThreads = new HandlerThread[threads];
+        mWorkers = new Handler[threads];
+        for (int i=0; i<threads; i++) {
+            final HandlerThread thread = new HandlerThread("NotificationInflater" + i,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mThreads[i] = thread;
+            mWorkers[i] = new Handler(thread.getLooper());
+        }
+    }
+
+    /**
+     * Inflate remoteViews, spread across the worker threads.  A later call or
+     * {@link #cancel} drops the results of this one.
+     */
+    void inflate(final RemoteViews[] remoteViews, final Callback callback) {
+        final int generation = ++mGeneration;
+        final long start = SystemClock.uptimeMillis();
+        final int N = remoteViews.length;
+        final View[] views = new View[N];
+        final long[] nanos = new long[N];
+        if (N == 0) {
+            callback.onInflated(remoteViews, views, nanos, 0);
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(N);
+        final Runnable deliver = new Runnable() {
+            public void run() {
+                if (generation == mGeneration) {
+                    callback.onInflated(remoteViews, views, nanos,
+                            SystemClock.uptimeMillis() - start);
+                }
+            }
+        };
+        for (int i=0; i<N; i++) {
+            final int index = i;
+            mWorkers[i % mWorkers.length].post(new Runnable() {
+                public void run() {
+                    final long t = System.nanoTime();
+                    views[index] = inflateDetached(remoteViews[index]);
+                    nanos[index] = System.nanoTime() - t;
+                    if (remaining.decrementAndGet() == 0) {
+                        mMainHandler.post(deliver);
+                    }
+                }
+            });
+        }
+    }
+
+    void cancel() {
+        mGeneration++;
+    }
+
+    /**
+     * Cancel, and let the worker threads go.  Can't be used after this.
+     */
+    void quit() {
+        cancel();
+        for (HandlerThread thread : mThreads) {
+            thread.quit();
+        }
+    }
+
+    private View inflateDetached(RemoteViews remoteViews) {
+        if (!isThreadAgnostic(remoteViews)) {
+            return null;
+        }
+        try {
+            // LatestItemView, the eventual parent, is a FrameLayout.
+            return remoteViews.apply(mContext, new FrameLayout(mContext));
+        } catch (RuntimeException e) {
+            Slog.w(TAG, "couldn't inflate " + remoteViews.getPackage() + " off the main thread", e);
+            return null;
+        }
+    }
+
+    /**
+     * Look at the tags of the layout before paying for inflating it; some
+     * widgets bind themselves to the thread they're constructed on.
+     */
+    private boolean isThreadAgnostic(RemoteViews remoteViews) {
+        XmlResourceParser parser = null;
+        try {
+            final Resources res = IconCache.getInstance(mContext).getResources(mContext,
+                    remoteViews.getPackage());
+            parser = res.getLayout(remoteViews.getLayoutId());
+            int type;
+            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type != XmlPullParser.START_TAG) {
+                    continue;
+                }
+                String name = parser.getName();
+                if (name.startsWith("android.widget.") || name.startsWith("android.view.")) {
+                    name = name.substring(name.lastIndexOf('.') + 1);
+                }
+                if (!THREAD_AGNOSTIC_TAGS.contains(name)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        } catch (Resources.NotFoundException e) {
+            return false;
+        } catch (XmlPullParserException e) {
+            return false;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Per-package token buckets for incoming notification adds and updates.
+ * Each package may post up to {@code burst} notifications at once, and
+ * regains {@code perSecond} tokens every second after that.  A package
+ * whose bucket has filled up again is no different from one never seen, so
+ * its bucket is dropped.  Used on the main thread by {@link CommandQueue};
+ * synchronized only so that dump() can read it from a binder thread.
+ */
+final class NotificationRateLimiter {
+    // how often tryAcquire() looks for full buckets to drop
+    private static final long SWEEP_INTERVAL = 60 * 1000;
+
+    private static final class Bucket {
+        float tokens;
+        long lastRefill;
+        int passed;
+        int shed;
+        int exempt;
+    }
+
+    private final int mBurst;
+    private final int mPerSecond;
+    private final HashMap<String, Bucket> mBuckets = new HashMap<String, Bucket>();
+    private long mLastSweep;
+    private int mEvicted;
+
+    /**
+     * A rate of 0 turns the limiter off; every event passes.
+     */
+    NotificationRateLimiter(int burst, int perSecond) {
+        mBurst = burst < 1 ? 1 : burst;
+        mPerSecond = perSecond < 0 ? 0 : perSecond;
+    }
+
+    boolean isEnabled() {
+        return mPerSecond > 0;
+    }
+
+    /**
+     * Take a token for pkg if there is one.  Returns false if the event should
+     * be deferred.
+     */
+    synchronized boolean tryAcquire(String pkg, long now) {
+        if (!isEnabled()) {
+            return true;
+        }
+        if (now - mLastSweep >= SWEEP_INTERVAL) {
+            mLastSweep = now;
+            evictFull(now);
+        }
+        final Bucket b = refill(pkg, now);
+        if (b.tokens >= 1f) {
+            b.tokens -= 1f;
+            b.passed++;
+            return true;
+        }
+        b.shed++;
+        return false;
+    }
+
+    /**
+     * Count an event of pkg that passed without taking a token.
+     */
+    synchronized void noteExempt(String pkg, long now) {
+        if (isEnabled()) {
+            refill(pkg, now).exempt++;
+        }
+    }
+
+    /**
+     * Returns how many milliseconds until pkg has a whole token again.
+     */
+    synchronized long delayUntilToken(String pkg, long now) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        final Bucket b = refill(pkg, now);
+        if (b.tokens >= 1f) {
+            return 0;
+        }
+        return (long)Math.ceil((1f - b.tokens) * 1000f / mPerSecond);
+    }
+
+    /**
+     * Forget pkg, which has been uninstalled.
+     */
+    synchronized void removePackage(String pkg) {
+        if (mBuckets.remove(pkg) != null) {
+            mEvicted++;
+        }
+    }
+
+    private void evictFull(long now) {
+        final Iterator<Bucket> it = mBuckets.values().iterator();
+        while (it.hasNext()) {
+            final Bucket b = it.next();
+            if (b.tokens + (now - b.lastRefill) * mPerSecond / 1000f >= mBurst) {
+                it.remove();
+                mEvicted++;
+            }
+        }
+    }
+
+    private Bucket refill(String pkg, long now) {
+        Bucket b = mBuckets.get(pkg);
+        if (b == null) {
+            b = new Bucket();
+            b.tokens = mBurst;
+            b.lastRefill = now;
+            mBuckets.put(pkg, b);
+            return b;
+        }
+        final long elapsed = now - b.lastRefill;
+        if (elapsed > 0) {
+            b.tokens += elapsed * mPerSecond / 1000f;
+            if (b.tokens > mBurst) {
+                b.tokens = mBurst;
+            }
+            b.lastRefill = now;
+        }
+        return b;
+    }
+
+    synchronized void dump(PrintWriter pw, long now) {
+        pw.println("  NotificationRateLimiter: burst=" + mBurst + " perSecond=" + mPerSecond
+                + (isEnabled() ? "" : " (disabled)") + " packages=" + mBuckets.size()
+                + " evicted=" + mEvicted);
+        for (String pkg : mBuckets.keySet()) {
+            final Bucket b = refill(pkg, now);
+            pw.println("    " + pkg + ": tokens=" + b.tokens + " passed=" + b.passed
+                    + " shed=" + b.shed + " exempt=" + b.exempt);
+        }
+    }
+}
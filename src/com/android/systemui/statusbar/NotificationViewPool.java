@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.view.View;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Detached notification views, keyed by the package and layout id of the
+ * RemoteViews they were built for, and optionally by who they were built for,
+ * so that a RemoteViews with the same layout can be reapplied onto one instead
+ * of inflated again.  Bounded both per key and in total; when full, the least
+ * recently used keys go first.
+ */
+class NotificationViewPool {
+    private final String mName;
+    private final int mMaxViews;
+    private final int mMaxPerLayout;
+
+    // in access order, so the eldest entry is the least recently used layout
+    private final LinkedHashMap<String, ArrayList<View>> mViews
+            = new LinkedHashMap<String, ArrayList<View>>(16, 0.75f, true);
+    private int mSize;
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+
+    NotificationViewPool(String name, int maxViews, int maxPerLayout) {
+        mName = name;
+        mMaxViews = maxViews;
+        mMaxPerLayout = maxPerLayout;
+    }
+
+    private static String key(String pkg, int layoutId, String owner) {
+        final String key = pkg + "/0x" + Integer.toHexString(layoutId);
+        return owner != null ? key + "@" + owner : key;
+    }
+
+    /**
+     * Returns a detached view for the layout, or null if there is none.
+     */
+    View obtain(String pkg, int layoutId) {
+        return obtain(pkg, layoutId, null);
+    }
+
+    /**
+     * Returns a detached view for the layout that was recycled with the same
+     * owner, or null if there is none.
+     */
+    View obtain(String pkg, int layoutId, String owner) {
+        final String key = key(pkg, layoutId, owner);
+        final ArrayList<View> views = mViews.get(key);
+        if (views == null) {
+            mMisses++;
+            return null;
+        }
+        final View view = views.remove(views.size() - 1);
+        if (views.isEmpty()) {
+            mViews.remove(key);
+        }
+        mSize--;
+        mHits++;
+        return view;
+    }
+
+    /**
+     * Keep a view that has been removed from its parent for later reuse.
+     */
+    void recycle(String pkg, int layoutId, View view) {
+        recycle(pkg, layoutId, null, view);
+    }
+
+    /**
+     * Keep a view that has been removed from its parent for later reuse by the
+     * same owner only.
+     */
+    void recycle(String pkg, int layoutId, String owner, View view) {
+        final String key = key(pkg, layoutId, owner);
+        ArrayList<View> views = mViews.get(key);
+        if (views == null) {
+            views = new ArrayList<View>(mMaxPerLayout);
+            mViews.put(key, views);
+        }
+        if (views.size() >= mMaxPerLayout) {
+            mEvictions++;
+            return;
+        }
+        views.add(view);
+        mSize++;
+        trimTo(mMaxViews);
+    }
+
+    /**
+     * Drop the least recently used keys until at most max views are left.
+     */
+    void trimTo(int max) {
+        final Iterator<ArrayList<View>> it = mViews.values().iterator();
+        while (mSize > max && it.hasNext()) {
+            final int n = it.next().size();
+            it.remove();
+            mSize -= n;
+            mEvictions += n;
+        }
+    }
+
+    void clear() {
+        mViews.clear();
+        mSize = 0;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  " + mName + ": views=" + mSize + "/" + mMaxViews + " layouts=" + mViews.size()
+                + " hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+import com.android.systemui.R;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+
+/**
+ * The number badges of notification icons, rendered once into bitmaps and
+ * shared by every icon showing the same number, so that drawing one is a
+ * single blit.  Badges are anchored at the bottom right of the icon and don't
+ * depend on its size, so they're keyed by the number alone; the cache starts
+ * over when the density changes, and has to be cleared on a theme change.
+ */
+final class NumberBadgeCache {
+    static final class Badge {
+        final Bitmap bitmap;
+        final int width;
+        final int height;
+
+        Badge(Bitmap bitmap) {
+            this.bitmap = bitmap;
+            this.width = bitmap.getWidth();
+            this.height = bitmap.getHeight();
+        }
+    }
+
+    private static final int MAX_BADGES = 32;
+
+    private static NumberBadgeCache sInstance;
+
+    // in access order, so the eldest entry is the least recently used badge
+    private final LinkedHashMap<Integer, Badge> mBadges
+            = new LinkedHashMap<Integer, Badge>(MAX_BADGES, 0.75f, true);
+    private final Rect mTmpRect = new Rect();
+    private Paint mPaint;
+    private int mDensityDpi;
+    private int mHits;
+    private int mMisses;
+
+    static synchronized NumberBadgeCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new NumberBadgeCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the badge for number, which must be positive.
+     */
+    synchronized Badge get(Context context, int number) {
+        final Resources res = context.getResources();
+        final int densityDpi = res.getDisplayMetrics().densityDpi;
+        if (densityDpi != mDensityDpi) {
+            clearLocked();
+            mDensityDpi = densityDpi;
+        }
+        Badge badge = mBadges.get(number);
+        if (badge != null) {
+            mHits++;
+            return badge;
+        }
+        mMisses++;
+        badge = render(res, number);
+        mBadges.put(number, badge);
+        if (mBadges.size() > MAX_BADGES) {
+            mBadges.remove(mBadges.keySet().iterator().next());
+        }
+        return badge;
+    }
+
+    private Badge render(Resources res, int number) {
+        if (mPaint == null) {
+            mPaint = new Paint();
+            mPaint.setTextAlign(Paint.Align.CENTER);
+            mPaint.setColor(res.getColor(R.drawable.notification_number_text_color));
+            mPaint.setAntiAlias(true);
+        }
+        final Drawable background = res.getDrawable(R.drawable.ic_notification_overlay);
+        final String str = Integer.toString(number);
+        final Rect r = mTmpRect;
+        mPaint.getTextBounds(str, 0, str.length(), r);
+        final int tw = r.right - r.left;
+        final int th = r.bottom - r.top;
+        background.getPadding(r);
+        int dw = r.left + tw + r.right;
+        if (dw < background.getMinimumWidth()) {
+            dw = background.getMinimumWidth();
+        }
+        int dh = r.top + th + r.bottom;
+        if (dh < background.getMinimumWidth()) {
+            dh = background.getMinimumWidth();
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(dw, dh, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        background.setBounds(0, 0, dw, dh);
+        background.draw(canvas);
+        canvas.drawText(str, dw - r.right - ((dw - r.right - r.left) / 2),
+                dh - r.bottom - ((dh - r.top - th - r.bottom) / 2), mPaint);
+        return new Badge(bitmap);
+    }
+
+    /**
+     * Drop the badges, after a theme or configuration change.
+     */
+    synchronized void clear() {
+        clearLocked();
+    }
+
+    private void clearLocked() {
+        // Views may still draw the old bitmaps, so leave them to the GC.
+        mBadges.clear();
+        mPaint = null;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        int bytes = 0;
+        for (Badge b : mBadges.values()) {
+            bytes += b.bitmap.getRowBytes() * b.height;
+        }
+        pw.println("  NumberBadgeCache: badges=" + mBadges.size() + "/" + MAX_BADGES
+                + " bytes=" + bytes + " densityDpi=" + mDensityDpi
+                + " hits=" + mHits + " misses=" + mMisses);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * What each package's notifications cost the status bar: time spent
+ * inflating, reapplying, loading icons and building ticker segments, how
+ * often it adds, updates and removes, and roughly how much memory its rows
+ * hold.  Everything lives in preallocated arrays indexed by a per-package
+ * slot, so recording doesn't allocate; only the first event from a package
+ * does, to give it a slot.  Written on the main thread only; dump() reads it
+ * racily from a binder thread, which is fine for statistics.
+ */
+final class PackageCostStats {
+    // timings
+    static final int APPLY = 0;
+    static final int REAPPLY = 1;
+    static final int ICON = 2;
+    static final int TICKER = 3;
+    private static final int TIMINGS = 4;
+    private static final String[] TIMING_NAMES = { "apply", "reapply", "icon", "ticker" };
+
+    // counts
+    static final int ADDS = 0;
+    static final int UPDATES = 1;
+    static final int REMOVES = 2;
+    private static final int COUNTS = 3;
+    private static final String[] COUNT_NAMES = { "adds", "updates", "removes" };
+
+    // sizes
+    static final int ROW_BYTES = 0;
+    static final int CACHE_BYTES = 1;
+    private static final int SIZES = 2;
+
+    // The last slot takes every package after the first MAX_PACKAGES - 1.
+    private static final int MAX_PACKAGES = 64;
+    private static final String OTHER = "(other)";
+    // bucket b counts durations below 2^b microseconds; the last one takes the rest
+    private static final int BUCKETS = 24;
+
+    private final HashMap<String, Integer> mSlots = new HashMap<String, Integer>();
+    private final String[] mPackages = new String[MAX_PACKAGES];
+    private int mPackageCount;
+
+    private final long[] mTotalNanos = new long[MAX_PACKAGES * TIMINGS];
+    private final int[] mHistograms = new int[MAX_PACKAGES * TIMINGS * BUCKETS];
+    private final int[] mCounts = new int[MAX_PACKAGES * COUNTS];
+    private final long[] mBytes = new long[MAX_PACKAGES * SIZES];
+
+    int slotFor(String pkg) {
+        if (pkg == null) {
+            pkg = OTHER;
+        }
+        final Integer slot = mSlots.get(pkg);
+        if (slot != null) {
+            return slot;
+        }
+        if (mPackageCount == MAX_PACKAGES - 1) {
+            mPackages[MAX_PACKAGES - 1] = OTHER;
+            return MAX_PACKAGES - 1;
+        }
+        final int s = mPackageCount++;
+        mPackages[s] = pkg;
+        mSlots.put(pkg, s);
+        return s;
+    }
+
+    void recordTime(int slot, int timing, long nanos) {
+        final int i = slot * TIMINGS + timing;
+        mTotalNanos[i] += nanos;
+        final long us = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(us);
+        if (bucket >= BUCKETS) {
+            bucket = BUCKETS - 1;
+        }
+        mHistograms[i * BUCKETS + bucket]++;
+    }
+
+    void count(int slot, int what) {
+        mCounts[slot * COUNTS + what]++;
+    }
+
+    void addBytes(int slot, int what, long delta) {
+        mBytes[slot * SIZES + what] += delta;
+    }
+
+    private int timingCount(int slot, int timing) {
+        final int base = (slot * TIMINGS + timing) * BUCKETS;
+        int n = 0;
+        for (int b=0; b<BUCKETS; b++) {
+            n += mHistograms[base + b];
+        }
+        return n;
+    }
+
+    /**
+     * Returns the upper bound, in microseconds, of the bucket holding the given
+     * fraction of the samples.
+     */
+    private long percentileMicros(int slot, int timing, float fraction) {
+        final int n = timingCount(slot, timing);
+        if (n == 0) {
+            return 0;
+        }
+        final int base = (slot * TIMINGS + timing) * BUCKETS;
+        final int target = (int)Math.ceil(n * fraction);
+        int seen = 0;
+        for (int b=0; b<BUCKETS; b++) {
+            seen += mHistograms[base + b];
+            if (seen >= target) {
+                return 1L << b;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    private long sortValue(int slot, String sort) {
+        for (int t=0; t<TIMINGS; t++) {
+            if (TIMING_NAMES[t].equals(sort)) {
+                return mTotalNanos[slot * TIMINGS + t];
+            }
+        }
+        for (int c=0; c<COUNTS; c++) {
+            if (COUNT_NAMES[c].equals(sort)) {
+                return mCounts[slot * COUNTS + c];
+            }
+        }
+        if ("bytes".equals(sort)) {
+            return mBytes[slot * SIZES + ROW_BYTES] + mBytes[slot * SIZES + CACHE_BYTES];
+        }
+        long total = 0;
+        for (int t=0; t<TIMINGS; t++) {
+            total += mTotalNanos[slot * TIMINGS + t];
+        }
+        return total;
+    }
+
+    /**
+     * sort is one of apply, reapply, icon, ticker, adds, updates, removes or
+     * bytes; anything else sorts by total time.
+     */
+    void dump(PrintWriter pw, final String sort) {
+        final int n = mPackages[MAX_PACKAGES - 1] != null ? MAX_PACKAGES : mPackageCount;
+        final Integer[] order = new Integer[n];
+        for (int i=0; i<n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                final long va = sortValue(a, sort);
+                final long vb = sortValue(b, sort);
+                return va > vb ? -1 : (va < vb ? 1 : 0);
+            }
+        });
+        pw.println("  PackageCostStats: packages=" + n + " sort=" + (sort != null ? sort : "time")
+                + " (times in ms total, us p50/p99)");
+        for (int i=0; i<n; i++) {
+            final int slot = order[i];
+            if (mPackages[slot] == null) {
+                continue;
+            }
+            final StringBuilder sb = new StringBuilder();
+            sb.append("    ").append(mPackages[slot]).append(':');
+            for (int t=0; t<TIMINGS; t++) {
+                sb.append(' ').append(TIMING_NAMES[t]).append('=')
+                        .append(timingCount(slot, t)).append('/')
+                        .append(mTotalNanos[slot * TIMINGS + t] / 1000000).append("ms/")
+                        .append(percentileMicros(slot, t, 0.5f)).append('/')
+                        .append(percentileMicros(slot, t, 0.99f));
+            }
+            for (int c=0; c<COUNTS; c++) {
+                sb.append(' ').append(COUNT_NAMES[c]).append('=').append(mCounts[slot * COUNTS + c]);
+            }
+            sb.append(" rowBytes=").append(mBytes[slot * SIZES + ROW_BYTES]);
+            sb.append(" cacheBytes=").append(mBytes[slot * SIZES + CACHE_BYTES]);
+            pw.println(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import java.io.PrintWriter;
+
+/**
+ * Histograms of the time between frames of the expanded panel's fling and
+ * reveal animations.  Frames are split by whether notifications changed since
+ * the previous one, and if so whether the panel changes were held back or
+ * laid out right away, so the cost of mutating the panel mid-animation shows.
+ */
+final class PanelFrameStats {
+    static final int QUIET = 0;
+    static final int HELD = 1;
+    static final int APPLIED = 2;
+    private static final int KIND_COUNT = 3;
+    private static final String[] KIND_NAMES = { "quiet", "held", "applied" };
+
+    // upper bounds of the buckets, in milliseconds; the last bucket takes everything above
+    private static final int[] BUCKET_LIMITS_MS = { 17, 20, 25, 33, 50, 100 };
+
+    private final int[][] mHistogram = new int[KIND_COUNT][BUCKET_LIMITS_MS.length + 1];
+    private final long[] mWorstMillis = new long[KIND_COUNT];
+    private long mLastFrame;
+    private boolean mChanged;
+
+    /**
+     * Note a notification change, to be charged to the next frame.
+     */
+    void noteChange() {
+        mChanged = true;
+    }
+
+    /**
+     * Note an animation frame.  frozen tells whether panel changes are being held.
+     */
+    void frame(long now, boolean frozen) {
+        if (mLastFrame != 0) {
+            record(!mChanged ? QUIET : (frozen ? HELD : APPLIED), now - mLastFrame);
+        }
+        mLastFrame = now;
+        mChanged = false;
+    }
+
+    /**
+     * The animation stopped; the next frame starts a new one.
+     */
+    void reset() {
+        mLastFrame = 0;
+        mChanged = false;
+    }
+
+    private void record(int kind, long millis) {
+        if (millis > mWorstMillis[kind]) {
+            mWorstMillis[kind] = millis;
+        }
+        final int[] histogram = mHistogram[kind];
+        for (int i=0; i<BUCKET_LIMITS_MS.length; i++) {
+            if (millis < BUCKET_LIMITS_MS[i]) {
+                histogram[i]++;
+                return;
+            }
+        }
+        histogram[BUCKET_LIMITS_MS.length]++;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  PanelFrameStats: frameMs");
+        for (int k=0; k<KIND_COUNT; k++) {
+            final int[] histogram = mHistogram[k];
+            final StringBuilder sb = new StringBuilder();
+            sb.append("    ").append(KIND_NAMES[k]).append(": worstMs=").append(mWorstMillis[k]);
+            for (int i=0; i<histogram.length; i++) {
+                sb.append(i < BUCKET_LIMITS_MS.length ? " <" + BUCKET_LIMITS_MS[i]
+                        : " >=" + BUCKET_LIMITS_MS[BUCKET_LIMITS_MS.length - 1])
+                        .append('=').append(histogram[i]);
+            }
+            pw.println(sb.toString());
+        }
+    }
+}
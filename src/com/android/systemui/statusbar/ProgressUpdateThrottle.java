@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.os.IBinder;
+
+import com.android.internal.statusbar.StatusBarNotification;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Per-key throttle for updates to ongoing notifications, which are mostly
+ * progress reports.  While the panel is open each key gets at most one update
+ * per interval; while it is closed updates are only recorded.  Only the newest
+ * held update for a key is kept, and the caller applies it once it is due or
+ * when the panel is revealed.  Used on the main thread only.
+ */
+final class ProgressUpdateThrottle {
+    static final class Update {
+        IBinder key;
+        StatusBarNotification notification;
+        long fingerprint;
+        long lastApplied;
+        boolean held;
+    }
+
+    private final long mInterval;
+    private final HashMap<IBinder, Update> mUpdates = new HashMap<IBinder, Update>();
+    private int mApplied;
+    private int mSuppressed;
+
+    /**
+     * A rate of 0 turns the throttle off; every update is applied.
+     */
+    ProgressUpdateThrottle(int perSecond) {
+        mInterval = perSecond > 0 ? 1000 / perSecond : 0;
+    }
+
+    boolean isEnabled() {
+        return mInterval > 0;
+    }
+
+    /**
+     * Returns whether an update to key should be applied now.  If not, it is held
+     * in place of any earlier held update for the same key.  An update that isn't
+     * throttleable always goes through and drops whatever was held for the key.
+     */
+    boolean shouldApply(IBinder key, StatusBarNotification notification, long fingerprint,
+            boolean throttleable, boolean panelVisible, long now) {
+        if (!isEnabled()) {
+            return true;
+        }
+        if (!throttleable) {
+            mUpdates.remove(key);
+            return true;
+        }
+        Update u = mUpdates.get(key);
+        if (u == null) {
+            u = new Update();
+            u.key = key;
+            u.lastApplied = now - mInterval;
+            mUpdates.put(key, u);
+        }
+        if (panelVisible && !u.held && now - u.lastApplied >= mInterval) {
+            u.lastApplied = now;
+            mApplied++;
+            return true;
+        }
+        u.notification = notification;
+        u.fingerprint = fingerprint;
+        u.held = true;
+        mSuppressed++;
+        return false;
+    }
+
+    /**
+     * Forget key, which has been removed.
+     */
+    void remove(IBinder key) {
+        mUpdates.remove(key);
+    }
+
+    void clear() {
+        mUpdates.clear();
+    }
+
+    /**
+     * Returns when the next held update becomes due, or -1 if none is held.
+     */
+    long nextDue() {
+        long next = -1;
+        for (Update u : mUpdates.values()) {
+            if (u.held) {
+                final long due = u.lastApplied + mInterval;
+                if (next < 0 || due < next) {
+                    next = due;
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Move the held updates that are due by now, or all of them if all is set,
+     * into out and mark them applied.
+     */
+    void takeDue(long now, boolean all, ArrayList<Update> out) {
+        final Iterator<Update> it = mUpdates.values().iterator();
+        while (it.hasNext()) {
+            final Update u = it.next();
+            if (u.held && (all || now - u.lastApplied >= mInterval)) {
+                final Update due = new Update();
+                due.key = u.key;
+                due.notification = u.notification;
+                due.fingerprint = u.fingerprint;
+                out.add(due);
+                u.notification = null;
+                u.held = false;
+                u.lastApplied = now;
+                mApplied++;
+            }
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        int held = 0;
+        for (Update u : mUpdates.values()) {
+            if (u.held) {
+                held++;
+            }
+        }
+        pw.println("  ProgressUpdateThrottle: intervalMs=" + mInterval
+                + (isEnabled() ? "" : " (disabled)") + " applied=" + mApplied
+                + " suppressed=" + mSuppressed + " keys=" + mUpdates.size() + " held=" + held);
+    }
+}
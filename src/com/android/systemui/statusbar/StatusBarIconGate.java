@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.app.StatusBarManager;
+
+import com.android.internal.statusbar.StatusBarIcon;
+import com.android.internal.statusbar.StatusBarIconList;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stands between {@link StatusBarPolicy} and the status bar manager.  While
+ * deferred (the screen is off) icon changes only update the latest state of
+ * their slot, and it all goes out in one go when deferral ends.
+ *
+ * With a local queue, changes are applied to our own icon list and views
+ * right away instead of going to system_server and coming back through
+ * {@link CommandQueue}; the server's copy is brought up to date from a
+ * background thread a little later, with only the latest state of each slot,
+ * and {@link CommandQueue} drops what the server sends back for those.  Used
+ * on the main thread only, apart from the sync.
+ */
+final class StatusBarIconGate {
+    private static final class Slot {
+        boolean iconSet;
+        int iconId;
+        int iconLevel;
+        boolean visibilitySet;
+        boolean visible;
+
+        /**
+         * Returns whether an earlier change was collapsed into this one.
+         */
+        boolean setIcon(int id, int level) {
+            final boolean collapsed = iconSet || visibilitySet;
+            iconSet = true;
+            iconId = id;
+            iconLevel = level;
+            // setting the icon makes it visible again, like the server does
+            visibilitySet = false;
+            return collapsed;
+        }
+
+        boolean setVisibility(boolean v) {
+            final boolean collapsed = visibilitySet;
+            visibilitySet = true;
+            visible = v;
+            return collapsed;
+        }
+    }
+
+    // when a change to a slot was made and what it leaves the slot's visibility at,
+    // to time how long it takes to show up
+    private static final class Stamp {
+        boolean visible;
+        long sentNanos;
+    }
+
+    private final String mPackage;
+    private final StatusBarManager mService;
+    private final CommandQueue mQueue;
+    private final LinkedHashMap<String, Slot> mPending = new LinkedHashMap<String, Slot>();
+    private boolean mDeferred;
+    private int mDeferredCount;
+    private int mCollapsedCount;
+
+    // changes already shown, waiting to be synced to the server; guarded by itself
+    private final LinkedHashMap<String, Slot> mUnsynced = new LinkedHashMap<String, Slot>();
+    // sync thread only
+    private final LinkedHashMap<String, Slot> mSyncing = new LinkedHashMap<String, Slot>();
+    // what the server has for each slot, as far as we know, starting from what it
+    // had when we registered; sync thread only, after the constructor
+    private final HashMap<String, StatusBarIcon> mServerIcons
+            = new HashMap<String, StatusBarIcon>();
+    private final int mSyncDelay;
+    private boolean mSyncPosted; // guarded by mUnsynced
+    private int mSyncs;
+    private int mSyncedChanges;
+    private int mCoalescedChanges;
+    private long mSyncNanos;
+
+    private final HashMap<String, Stamp> mStamps = new HashMap<String, Stamp>();
+    private int mLatencyCount;
+    private long mLatencyNanos;
+    private long mMaxLatencyNanos;
+
+    /**
+     * queue may be null, in which case every change makes the round trip
+     * through the server.  serverIcons is the server's icon list as of
+     * registration.
+     */
+    StatusBarIconGate(String pkg, StatusBarManager service, CommandQueue queue, int syncDelay,
+            StatusBarIconList serverIcons) {
+        mPackage = pkg;
+        mService = service;
+        mQueue = queue;
+        mSyncDelay = syncDelay;
+        if (queue != null) {
+            // Without these the first visibility sync of a slot couldn't tell
+            // whether the server sends anything back.
+            final int N = serverIcons.size();
+            for (int i=0; i<N; i++) {
+                final StatusBarIcon icon = serverIcons.getIcon(i);
+                if (icon != null) {
+                    mServerIcons.put(serverIcons.getSlot(i), icon.clone());
+                }
+            }
+        }
+    }
+
+    public void setIcon(String slot, int iconId, int iconLevel) {
+        if (!mDeferred) {
+            sendIcon(slot, iconId, iconLevel);
+            return;
+        }
+        if (pendingSlot(slot).setIcon(iconId, iconLevel)) {
+            mCollapsedCount++;
+        }
+    }
+
+    public void setIconVisibility(String slot, boolean visible) {
+        if (!mDeferred) {
+            sendIconVisibility(slot, visible);
+            return;
+        }
+        if (pendingSlot(slot).setVisibility(visible)) {
+            mCollapsedCount++;
+        }
+    }
+
+    private Slot pendingSlot(String slot) {
+        mDeferredCount++;
+        Slot s = mPending.get(slot);
+        if (s == null) {
+            s = new Slot();
+            mPending.put(slot, s);
+        }
+        return s;
+    }
+
+    private void sendIcon(String slot, int iconId, int iconLevel) {
+        stamp(slot, true, true);
+        if (mQueue != null
+                && mQueue.setLocalIcon(slot, new StatusBarIcon(mPackage, iconId, iconLevel))) {
+            synchronized (mUnsynced) {
+                if (unsyncedSlot(slot).setIcon(iconId, iconLevel)) {
+                    mCoalescedChanges++;
+                }
+                scheduleSyncLocked();
+            }
+            return;
+        }
+        mService.setIcon(slot, iconId, iconLevel);
+    }
+
+    private void sendIconVisibility(String slot, boolean visible) {
+        stamp(slot, false, visible);
+        if (mQueue != null && mQueue.setLocalIconVisibility(slot, visible)) {
+            synchronized (mUnsynced) {
+                if (unsyncedSlot(slot).setVisibility(visible)) {
+                    mCoalescedChanges++;
+                }
+                scheduleSyncLocked();
+            }
+            return;
+        }
+        mService.setIconVisibility(slot, visible);
+    }
+
+    private Slot unsyncedSlot(String slot) {
+        Slot s = mUnsynced.get(slot);
+        if (s == null) {
+            s = new Slot();
+            mUnsynced.put(slot, s);
+        }
+        return s;
+    }
+
+    private void scheduleSyncLocked() {
+        if (!mSyncPosted) {
+            mSyncPosted = true;
+            BackgroundThread.getHandler().postDelayed(mSync, mSyncDelay);
+        }
+    }
+
+    private final Runnable mSync = new Runnable() {
+        public void run() {
+            synchronized (mUnsynced) {
+                mSyncing.putAll(mUnsynced);
+                mUnsynced.clear();
+                mSyncPosted = false;
+            }
+            final long start = System.nanoTime();
+            for (Map.Entry<String, Slot> e : mSyncing.entrySet()) {
+                final String slot = e.getKey();
+                final Slot s = e.getValue();
+                // Tell the queue what comes back before it can arrive, so that only
+                // that is dropped and not what anyone else sets the slot to.
+                if (s.iconSet) {
+                    final StatusBarIcon icon = new StatusBarIcon(mPackage, s.iconId, s.iconLevel);
+                    mServerIcons.put(slot, icon);
+                    mQueue.expectEcho(slot, icon);
+                    mService.setIcon(slot, s.iconId, s.iconLevel);
+                    mSyncedChanges++;
+                }
+                if (s.visibilitySet) {
+                    final StatusBarIcon old = mServerIcons.get(slot);
+                    if (old != null && old.visible != s.visible) {
+                        // the server only sends a visibility change back if it is one
+                        final StatusBarIcon icon = old.clone();
+                        icon.visible = s.visible;
+                        mServerIcons.put(slot, icon);
+                        mQueue.expectEcho(slot, icon);
+                    }
+                    mService.setIconVisibility(slot, s.visible);
+                    mSyncedChanges++;
+                }
+            }
+            mSyncNanos += System.nanoTime() - start;
+            mSyncs++;
+            mSyncing.clear();
+        }
+    };
+
+    /**
+     * Note when a change to slot went out, if it changes what the slot shows.
+     * A visibility change that doesn't make a difference never comes back.
+     */
+    private void stamp(String slot, boolean icon, boolean visible) {
+        Stamp s = mStamps.get(slot);
+        if (s == null) {
+            s = new Stamp();
+            s.visible = true;
+            mStamps.put(slot, s);
+        } else if (!icon && s.visible == visible) {
+            return;
+        }
+        s.visible = visible;
+        if (s.sentNanos == 0) {
+            s.sentNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called on the main thread when the views of slot have been updated, from
+     * the local path or from the server.
+     */
+    void onIconApplied(String slot) {
+        final Stamp s = mStamps.get(slot);
+        if (s == null || s.sentNanos == 0) {
+            return;
+        }
+        final long latency = System.nanoTime() - s.sentNanos;
+        s.sentNanos = 0;
+        mLatencyCount++;
+        mLatencyNanos += latency;
+        if (latency > mMaxLatencyNanos) {
+            mMaxLatencyNanos = latency;
+        }
+    }
+
+    void setDeferred(boolean deferred) {
+        if (mDeferred == deferred) {
+            return;
+        }
+        mDeferred = deferred;
+        if (!deferred) {
+            for (Map.Entry<String, Slot> e : mPending.entrySet()) {
+                final Slot s = e.getValue();
+                if (s.iconSet) {
+                    sendIcon(e.getKey(), s.iconId, s.iconLevel);
+                }
+                if (s.visibilitySet) {
+                    sendIconVisibility(e.getKey(), s.visible);
+                }
+            }
+            mPending.clear();
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  StatusBarIconGate: deferred=" + mDeferred + " pendingSlots=" + mPending.size()
+                + " deferredChanges=" + mDeferredCount + " collapsedChanges=" + mCollapsedCount);
+        pw.println("    local=" + (mQueue != null) + " syncs=" + mSyncs
+                + " syncedChanges=" + mSyncedChanges + " coalescedChanges=" + mCoalescedChanges
+                + " syncMs=" + (mSyncNanos / 1000000));
+        pw.println("    latency: changes=" + mLatencyCount
+                + " avgUs=" + (mLatencyCount > 0 ? mLatencyNanos / mLatencyCount / 1000 : 0)
+                + " maxUs=" + (mMaxLatencyNanos / 1000));
+    }
+}
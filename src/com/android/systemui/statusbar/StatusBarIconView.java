@@ -21,37 +21,28 @@ import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.Rect;
 import android.util.Slog;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewDebug;
+import android.view.ViewParent;
 import android.widget.FrameLayout;
 
 import com.android.internal.statusbar.StatusBarIcon;
 
-import com.android.systemui.R;
-
 public class StatusBarIconView extends AnimatedImageView {
     private static final String TAG = "StatusBarIconView";
 
     private StatusBarIcon mIcon;
     @ViewDebug.ExportedProperty private String mSlot;
-    private Drawable mNumberBackground;
-    private Paint mNumberPain;
-    private int mNumberX;
-    private int mNumberY;
-    private String mNumberText;
+    // the number overlay, shared with every icon showing the same number
+    private NumberBadgeCache.Badge mBadge;
+    private int mBadgeX;
+    private int mBadgeY;
 
     public StatusBarIconView(Context context, String slot) {
         super(context);
-        final Resources res = context.getResources();
         mSlot = slot;
-        mNumberPain = new Paint();
-        mNumberPain.setTextAlign(Paint.Align.CENTER);
-        mNumberPain.setColor(res.getColor(R.drawable.notification_number_text_color));
-        mNumberPain.setAntiAlias(true);
     }
 
     private static boolean streq(String a, String b) {
@@ -94,16 +85,13 @@ public class StatusBarIconView extends AnimatedImageView {
         }
         if (!numberEquals) {
             if (icon.number > 0) {
-                if (mNumberBackground == null) {
-                    mNumberBackground = getContext().getResources().getDrawable(
-                            R.drawable.ic_notification_overlay);
-                }
+                mBadge = NumberBadgeCache.getInstance().get(getContext(), icon.number);
                 placeNumber();
             } else {
-                mNumberBackground = null;
-                mNumberText = null;
+                mBadge = null;
             }
             invalidate();
+            notifyMerger();
         }
         if (!visibilityEquals) {
             setVisibility(icon.visible ? VISIBLE : GONE);
@@ -111,24 +99,68 @@ public class StatusBarIconView extends AnimatedImageView {
         return true;
     }
 
+    @Override
+    public void setVisibility(int visibility) {
+        super.setVisibility(visibility);
+        notifyMerger();
+    }
+
+    private void notifyMerger() {
+        final ViewParent parent = getParent();
+        if (parent instanceof IconMerger) {
+            ((IconMerger)parent).onIconChanged(this);
+        }
+    }
+
+    /**
+     * Load the drawables for the current icon again, after a theme change.
+     */
+    void reloadDrawables() {
+        if (mIcon == null) {
+            return;
+        }
+        final StatusBarIcon icon = mIcon;
+        mIcon = null;
+        mBadge = null;
+        set(icon);
+    }
+
     private Drawable getIcon(StatusBarIcon icon) {
         return getIcon(getContext(), icon);
     }
 
     /**
      * Returns the right icon to use for this item, respecting the iconId and
-     * iconPackage (if set)
+     * iconPackage (if set).  Icons that were loaded before come out of the
+     * {@link IconCache}, and the frames of the busiest status icons out of
+     * {@link StatusIconFrames}.
      * 
      * @param context Context to use to get resources if iconPackage is not set
      * @return Drawable for this item, or null if the package or item could not
      *         be found
      */
     public static Drawable getIcon(Context context, StatusBarIcon icon) {
+        if (icon.iconId == 0) {
+            return null;
+        }
+
+        final Drawable frame = StatusIconFrames.getInstance().getDrawable(icon.iconPackage,
+                icon.iconId);
+        if (frame != null) {
+            return frame;
+        }
+
+        final IconCache cache = IconCache.getInstance(context);
+        final Drawable cached = cache.getDrawable(icon.iconPackage, icon.iconId);
+        if (cached != null) {
+            return cached;
+        }
+
         Resources r = null;
 
         if (icon.iconPackage != null) {
             try {
-                r = context.getPackageManager().getResourcesForApplication(icon.iconPackage);
+                r = cache.getResources(context, icon.iconPackage);
             } catch (PackageManager.NameNotFoundException ex) {
                 Slog.e(StatusBarService.TAG, "Icon package not found: " + icon.iconPackage);
                 return null;
@@ -137,12 +169,11 @@ public class StatusBarIconView extends AnimatedImageView {
             r = context.getResources();
         }
 
-        if (icon.iconId == 0) {
-            return null;
-        }
-        
         try {
-            return r.getDrawable(icon.iconId);
+            final long start = System.nanoTime();
+            final Drawable drawable = r.getDrawable(icon.iconId);
+            cache.putDrawable(icon.iconPackage, icon.iconId, drawable, System.nanoTime() - start);
+            return drawable;
         } catch (RuntimeException e) {
             Slog.w(StatusBarService.TAG, "Icon not found in "
                   + (icon.iconPackage != null ? icon.iconId : "<system>")
@@ -162,7 +193,7 @@ public class StatusBarIconView extends AnimatedImageView {
 
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
-        if (mNumberBackground != null) {
+        if (mBadge != null) {
             placeNumber();
         }
     }
@@ -170,9 +201,8 @@ public class StatusBarIconView extends AnimatedImageView {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        if (mNumberBackground != null) {
-            mNumberBackground.draw(canvas);
-            canvas.drawText(mNumberText, mNumberX, mNumberY, mNumberPain);
+        if (mBadge != null) {
+            canvas.drawBitmap(mBadge.bitmap, mBadgeX, mBadgeY, null);
         }
     }
 
@@ -183,24 +213,8 @@ public class StatusBarIconView extends AnimatedImageView {
     }
 
     void placeNumber() {
-        final String str = mNumberText = Integer.toString(mIcon.number);
-        final int w = getWidth();
-        final int h = getHeight();
-        final Rect r = new Rect();
-        mNumberPain.getTextBounds(str, 0, str.length(), r);
-        final int tw = r.right - r.left;
-        final int th = r.bottom - r.top;
-        mNumberBackground.getPadding(r);
-        int dw = r.left + tw + r.right;
-        if (dw < mNumberBackground.getMinimumWidth()) {
-            dw = mNumberBackground.getMinimumWidth();
-        }
-        mNumberX = w-r.right-((dw-r.right-r.left)/2);
-        int dh = r.top + th + r.bottom;
-        if (dh < mNumberBackground.getMinimumWidth()) {
-            dh = mNumberBackground.getMinimumWidth();
-        }
-        mNumberY = h-r.bottom-((dh-r.top-th-r.bottom)/2);
-        mNumberBackground.setBounds(w-dw, h-dh, w, h);
+        // bottom right, as far as the badge fits
+        mBadgeX = getWidth() - mBadge.width;
+        mBadgeY = getHeight() - mBadge.height;
     }
 }
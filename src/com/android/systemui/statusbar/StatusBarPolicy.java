@@ -30,6 +30,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.graphics.drawable.Drawable;
 import android.location.LocationManager;
@@ -59,7 +60,10 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import java.io.PrintWriter;
+
 import com.android.internal.app.IBatteryStats;
+import com.android.internal.statusbar.StatusBarIconList;
 import com.android.internal.telephony.IccCard;
 import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.cdma.EriInfo;
@@ -92,7 +96,7 @@ public class StatusBarPolicy {
     private static final int INET_CONDITION_THRESHOLD = 50;
 
     private final Context mContext;
-    private final StatusBarManager mService;
+    private final StatusBarIconGate mService;
     private final Handler mHandler = new StatusBarHandler();
     private final IBatteryStats mBatteryStats;
 
@@ -640,11 +644,76 @@ public class StatusBarPolicy {
     // phone_signal visibility
     private boolean mPhoneSignalHidden;
 
-    public StatusBarPolicy(Context context) {
+    /**
+     * While the screen is off, only keep track of the latest state of each icon,
+     * and push it all out when it comes back on.
+     */
+    void setScreenOn(boolean on) {
+        mService.setDeferred(!on);
+    }
+
+    void dump(PrintWriter pw) {
+        mService.dump(pw);
+    }
+
+    /**
+     * Called on the main thread when the view of an icon slot has been updated.
+     */
+    void onIconApplied(String slot) {
+        mService.onIconApplied(slot);
+    }
+
+    /**
+     * Load the frames of the signal, data, wifi and wimax icons again, after a
+     * theme or density change.
+     */
+    void reloadIconFrames() {
+        final StatusIconFrames frames = StatusIconFrames.getInstance();
+        frames.clear();
+        frames.load(mContext, getAnimatedIconIds());
+    }
+
+    private static int[] getAnimatedIconIds() {
+        final int[][][] tables = {
+            sSignalImages, sSignalImages_r,
+            sDataNetType_g, sDataNetType_3g, sDataNetType_e, sDataNetType_h,
+            sDataNetType_1x, sDataNetType_4g,
+            sWifiSignalImages, sWimaxSignalImages
+        };
+        int n = 0;
+        for (int[][] table : tables) {
+            for (int[] row : table) {
+                n += row.length;
+            }
+        }
+        final int[] ids = new int[n + 3];
+        int i = 0;
+        for (int[][] table : tables) {
+            for (int[] row : table) {
+                System.arraycopy(row, 0, ids, i, row.length);
+                i += row.length;
+            }
+        }
+        ids[i++] = sWifiTemporarilyNotConnectedImage;
+        ids[i++] = sWimaxDisconnectedImg;
+        ids[i++] = sWimaxIdleImg;
+        return ids;
+    }
+
+    /**
+     * serverIcons is the icon list the status bar manager returned when the
+     * status bar registered.
+     */
+    public StatusBarPolicy(Context context, CommandQueue queue, StatusBarIconList serverIcons) {
         mContext = context;
-        mService = (StatusBarManager)context.getSystemService(Context.STATUS_BAR_SERVICE);
+        final Resources res = context.getResources();
+        mService = new StatusBarIconGate(context.getPackageName(),
+                (StatusBarManager)context.getSystemService(Context.STATUS_BAR_SERVICE),
+                res.getBoolean(R.bool.config_localStatusIcons) ? queue : null,
+                res.getInteger(R.integer.config_statusIconSyncDelayMs), serverIcons);
         mSignalStrength = new SignalStrength();
         mBatteryStats = BatteryStatsService.getService();
+        StatusIconFrames.getInstance().load(context, getAnimatedIconIds());
 
         // settings observer for cm-battery change
         SettingsObserver settingsObserver = new SettingsObserver(mHandler);
@@ -20,6 +20,9 @@ package com.android.systemui.statusbar;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 
 import android.app.ActivityManagerNative;
 import android.app.AlarmManager;
@@ -34,17 +37,24 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.IntentFilter.MalformedMimeTypeException;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.database.ContentObserver;
+import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.IPowerManager;
+import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
@@ -52,7 +62,6 @@ import android.provider.CmSystem;
 import android.provider.Settings;
 import android.provider.Settings.SettingNotFoundException;
 import android.text.TextUtils;
-import android.util.Pair;
 import android.util.Slog;
 import android.view.Display;
 import android.view.Gravity;
@@ -62,12 +71,14 @@ import android.view.MotionEvent;
 import android.view.VelocityTracker;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.WindowManager;
 import android.view.WindowManagerImpl;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.widget.FrameLayout;
+import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.RemoteViews;
 import android.widget.ScrollView;
@@ -101,6 +112,7 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
     StatusBarPolicy mIconPolicy;
 
     CommandQueue mCommandQueue;
+    NotificationRateLimiter mNotificationRateLimiter;
     IStatusBarService mBarService;
 
     /**
@@ -149,6 +161,37 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
     TextView mLatestTitle;
     LinearLayout mLatestItems;
     ItemTouchDispatcher mTouchDispatcher;
+    // content views of rows scrolled far out of the panel or removed, for reuse by the
+    // same notification
+    NotificationViewPool mContentViewPool = new NotificationViewPool("contentViewPool",
+            MAX_POOLED_CONTENT_VIEWS, 4);
+    // rows of removed notifications, for reuse by a new one with the same layout
+    NotificationViewPool mRowPool = new NotificationViewPool("rowPool", MAX_POOLED_ROWS, 2);
+    boolean mUpdateBoundRowsPosted;
+    // drawing caches of the rows on or near the screen
+    DrawingCacheManager mDrawingCaches;
+    // what each package's notifications cost us
+    final PackageCostStats mCosts = new PackageCostStats();
+    // time-sliced queue for inflating, reapplying and icon updates of notification views
+    ViewWorkScheduler mViewWork = new ViewWorkScheduler(INFLATE_SLICE_DURATION,
+            ANIM_FRAME_DURATION);
+    // if set, content views are only inflated once the panel is revealed, or when idle
+    boolean mLazyInflation;
+    boolean mIdleInflaterQueued;
+    // inflates content views off the main thread at startup, if enabled
+    NotificationPreInflater mPreInflater;
+    boolean mAddingInitialRows;
+    boolean mPreInflating;
+    int mPreInflateFallbacks;
+    long mInitialRowsMillis;
+    long mPreInflateMillis;
+    long mRecreateMillis;
+    // at most this many latest rows per package, the rest are folded into a digest; 0 is off
+    int mDigestLimit;
+    HashMap<String, Digest> mDigests = new HashMap<String, Digest>();
+    // packages whose digest was tapped open, until the panel closes
+    HashSet<String> mExpandedDigests = new HashSet<String>();
+    int mDigestedRows;
     // position
     int[] mPositionTmp = new int[2];
     boolean mExpanded;
@@ -182,6 +225,24 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
     VelocityTracker mVelocityTracker;
 
     static final int ANIM_FRAME_DURATION = (1000/60);
+    // how long one slice of view construction work may hold the main thread
+    static final int INFLATE_SLICE_DURATION = 4;
+    static final int PRE_INFLATE_THREADS = 2;
+    static final int MAX_POOLED_CONTENT_VIEWS = 16;
+    // what estimateViewBytes() counts for each view, bitmaps aside
+    static final int VIEW_OVERHEAD_BYTES = 512;
+    static final int MAX_POOLED_ROWS = 8;
+    // bits of NotificationData.Entry.queuedWork
+    static final int WORK_BIND_VISIBLE = 1 << 0;
+    static final int WORK_BIND_OFFSCREEN = 1 << 1;
+    static final int WORK_REAPPLY = 1 << 2;
+    static final int WORK_ICON = 1 << 3;
+    // how many of the top rows get inflated ahead of time while the panel is closed
+    static final int MAX_IDLE_INFLATED_ROWS = 12;
+    // longest the panel stays frozen, in case a gesture never ends
+    static final int MAX_PANEL_FREEZE_DURATION = 2000;
+    // how long the removals of a clear all are held for one detach pass at most
+    static final int MAX_CLEAR_ALL_DURATION = 1000;
 
     boolean mAnimating;
     long mCurAnimationTime;
@@ -197,6 +258,48 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
     // for disabling the status bar
     int mDisabled = 0;
 
+    // What the icon caches were loaded for.  A theme change restarts the process
+    // (see ACTION_TMOBILE_THEME_CHANGED), so it takes the caches with it.
+    final Configuration mLastConfig = new Configuration();
+    int mLastDensityDpi;
+
+    // set while CommandQueue delivers a batch; see notificationsChanged()
+    boolean mInBatch;
+    boolean mBatchNotificationsChanged;
+    // rows and icons of notifications removed during the batch, detached at its end
+    HashSet<View> mPendingDetach = new HashSet<View>();
+    // the entries of rows in mPendingDetach, to go to mRowPool once they're detached
+    HashMap<View, NotificationData.Entry> mRecycleOnDetach
+            = new HashMap<View, NotificationData.Entry>();
+    private final ArrayList<NotificationData.Entry> mTmpRecycle
+            = new ArrayList<NotificationData.Entry>();
+    int mBulkDetaches;
+    int mBulkDetachedViews;
+    // After the clear button, the removals it causes are held like one batch until
+    // the last clearable notification is gone; see beginClearAll().
+    boolean mClearingAll;
+    int mClearAllRemaining;
+    int mClearAlls;
+    int mClearAllTimeouts;
+    // While the panel is dragged or flung, rows added and removed are attached and
+    // detached only once it comes to rest; see freezePanel().  Icons stay live.
+    boolean mFreezePanel;
+    boolean mPanelFrozen;
+    boolean mFrozenNotificationsChanged;
+    HashSet<View> mPendingAttach = new HashSet<View>();
+    int mPanelThaws;
+    int mPanelThawTimeouts;
+    final PanelFrameStats mFrameStats = new PanelFrameStats();
+    // swipe dismissals waiting for the next frame tick to be sent to the bar service
+    ArrayList<StatusBarNotification> mPendingSwipeClears = new ArrayList<StatusBarNotification>();
+    // updates that were skipped because nothing visible changed, and the rest
+    int mFingerprintHits;
+    int mFingerprintMisses;
+    // held back updates of ongoing notifications
+    ProgressUpdateThrottle mProgressThrottle;
+    ArrayList<ProgressUpdateThrottle.Update> mDueProgressUpdates
+            = new ArrayList<ProgressUpdateThrottle.Update>();
+
     // weather or not to show status bar on bottom
     boolean mBottomBar;
     boolean mButtonsLeft;
@@ -282,13 +385,28 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
             EXPANDED_FULL_OPEN *= -1;
         }
 
+        mLastConfig.setTo(getResources().getConfiguration());
+        mLastDensityDpi = getResources().getDisplayMetrics().densityDpi;
+
         // receive broadcasts
         IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_CONFIGURATION_CHANGED);
         filter.addAction(Intent.ACTION_CLOSE_SYSTEM_DIALOGS);
         filter.addAction(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
         registerReceiver(mBroadcastReceiver, filter);
 
+        // icons of replaced or removed packages have to be loaded again, and
+        // removed packages don't need a rate limiter bucket any more
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        registerReceiver(mPackageReceiver, packageFilter);
+        registerReceiver(mPackageReceiver,
+                new IntentFilter(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE));
+
         try {
             IntentFilter tMoFilter = new IntentFilter(ACTION_TMOBILE_THEME_CHANGED);
             tMoFilter.addDataType(DATA_TYPE_TMOBILE_THEME);
@@ -303,7 +421,23 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         StatusBarIconList iconList = new StatusBarIconList();
         ArrayList<IBinder> notificationKeys = new ArrayList<IBinder>();
         ArrayList<StatusBarNotification> notifications = new ArrayList<StatusBarNotification>();
-        mCommandQueue = new CommandQueue(this, iconList);
+        final Resources res = getResources();
+        mNotificationRateLimiter = new NotificationRateLimiter(
+                res.getInteger(R.integer.config_notificationRateLimitBurst),
+                res.getInteger(R.integer.config_notificationRateLimitPerSecond));
+        mDrawingCaches = new DrawingCacheManager(
+                res.getInteger(R.integer.config_notificationDrawingCacheBudgetKb) * 1024,
+                new DrawingCacheManager.Listener() {
+                    public void onCacheBytesChanged(int owner, int delta) {
+                        mCosts.addBytes(owner, PackageCostStats.CACHE_BYTES, delta);
+                    }
+                });
+        mProgressThrottle = new ProgressUpdateThrottle(
+                res.getInteger(R.integer.config_progressNotificationUpdatesPerSecond));
+        if (res.getBoolean(R.bool.config_backgroundNotificationInflation)) {
+            mPreInflater = new NotificationPreInflater(this, PRE_INFLATE_THREADS);
+        }
+        mCommandQueue = new CommandQueue(this, iconList, mNotificationRateLimiter);
         mBarService = IStatusBarService.Stub.asInterface(
                 ServiceManager.getService(Context.STATUS_BAR_SERVICE));
         try {
@@ -326,9 +460,18 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         // Set up the initial notification state
         N = notificationKeys.size();
         if (N == notifications.size()) {
+            final long start = SystemClock.uptimeMillis();
+            mAddingInitialRows = mPreInflater != null;
             for (int i=0; i<N; i++) {
-                addNotification(notificationKeys.get(i), notifications.get(i));
+                final StatusBarNotification n = notifications.get(i);
+                if (n.notification.fullScreenIntent != null) {
+                    sendFullScreenIntent(n);
+                }
+                addNotification(notificationKeys.get(i), n, NotificationFingerprint.UNKNOWN,
+                        false);
             }
+            mAddingInitialRows = false;
+            initialRowsAdded(N, start);
         } else {
             Slog.e(TAG, "Notification list length mismatch: keys=" + N
                     + " notifications=" + notifications.size());
@@ -340,8 +483,9 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         mStatusBarContainer = container;
         addStatusBarView();
 
-        // Lastly, call to the icon policy to install/update all the icons.
-        mIconPolicy = new StatusBarPolicy(this);
+        // Lastly, call to the icon policy to install/update all the icons.  Nothing
+        // from the queue has been applied yet, so iconList is still what the server has.
+        mIconPolicy = new StatusBarPolicy(this, mCommandQueue, iconList);
 
         // set up settings observer
         SettingsObserver settingsObserver = new SettingsObserver(mHandler);
@@ -353,7 +497,15 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
 
     @Override
     public void onDestroy() {
-        // we're never destroyed
+        // we're never destroyed, but don't leave the thread behind if we are
+        BackgroundThread.quit();
+    }
+
+    @Override
+    public void onLowMemory() {
+        // Pooled views are only a shortcut; let them go.
+        mRowPool.trimTo(0);
+        mContentViewPool.trimTo(0);
     }
 
     /**
@@ -375,6 +527,9 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         mTouchDispatcher = new ItemTouchDispatcher(this);
 
         mIconSize = res.getDimensionPixelSize(com.android.internal.R.dimen.status_bar_icon_size);
+        mLazyInflation = res.getBoolean(R.bool.config_lazyNotificationInflation);
+        mDigestLimit = res.getInteger(R.integer.config_notificationDigestRowsPerPackage);
+        mFreezePanel = res.getBoolean(R.bool.config_freezePanelWhileAnimating);
 
         //Check for compact carrier layout and apply if enabled
         mCompactCarrier = Settings.System.getInt(getContentResolver(),
@@ -383,6 +538,9 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
                                                 R.layout.status_bar_expanded, null);
         expanded.mService = this;
         expanded.mTouchDispatcher = mTouchDispatcher;
+        final ViewTreeObserver observer = expanded.getViewTreeObserver();
+        observer.addOnScrollChangedListener(mPanelScrollListener);
+        observer.addOnGlobalLayoutListener(mPanelLayoutListener);
 
         CmStatusBarView sb = (CmStatusBarView)View.inflate(context, R.layout.status_bar, null);
         sb.mService = this;
@@ -565,6 +723,9 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         StatusBarIconView view = new StatusBarIconView(this, slot);
         view.set(icon);
         mStatusIcons.addView(view, viewIndex, new LinearLayout.LayoutParams(mIconSize, mIconSize));
+        if (mIconPolicy != null) {
+            mIconPolicy.onIconApplied(slot);
+        }
     }
 
     public void updateIcon(String slot, int index, int viewIndex,
@@ -575,6 +736,9 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         }
         StatusBarIconView view = (StatusBarIconView)mStatusIcons.getChildAt(viewIndex);
         view.set(icon);
+        if (mIconPolicy != null) {
+            mIconPolicy.onIconApplied(slot);
+        }
     }
 
     public void removeIcon(String slot, int index, int viewIndex) {
@@ -584,48 +748,162 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         mStatusIcons.removeViewAt(viewIndex);
     }
 
-    public void addNotification(IBinder key, StatusBarNotification notification) {
-        boolean shouldTick = true;
-        if (notification.notification.fullScreenIntent != null) {
-            shouldTick = false;
-            Slog.d(TAG, "Notification has fullScreenIntent; sending fullScreenIntent");
-            try {
-                notification.notification.fullScreenIntent.send();
-            } catch (PendingIntent.CanceledException e) {
-            }
-        }
+    public void addNotification(IBinder key, StatusBarNotification notification,
+            long fingerprint, boolean quiet) {
+        // CommandQueue has sent the fullScreenIntent already
+        final boolean shouldTick = !quiet && notification.notification.fullScreenIntent == null;
 
+        mCosts.count(mCosts.slotFor(notification.pkg), PackageCostStats.ADDS);
         StatusBarIconView iconView = addNotificationViews(key, notification);
         if (iconView == null) return;
+        getNotificationEntry(key).fingerprint = fingerprint;
 
         if (shouldTick) {
             tick(notification);
         }
 
         // Recalculate the position of the sliding windows and the titles.
-        setAreThereNotifications();
-        updateExpandedViewPos(EXPANDED_LEAVE_ALONE);
+        notificationsChanged();
     }
 
-    public void updateNotification(IBinder key, StatusBarNotification notification) {
-        NotificationData oldList;
-        int oldIndex = mOngoing.findEntry(key);
-        if (oldIndex >= 0) {
-            oldList = mOngoing;
-        } else {
-            oldIndex = mLatest.findEntry(key);
-            if (oldIndex < 0) {
-                Slog.w(TAG, "updateNotification for unknown key: " + key);
+    public void sendFullScreenIntent(StatusBarNotification notification) {
+        Slog.d(TAG, "Notification has fullScreenIntent; sending fullScreenIntent");
+        try {
+            notification.notification.fullScreenIntent.send();
+        } catch (PendingIntent.CanceledException e) {
+        }
+    }
+
+    public void updateNotification(IBinder key, StatusBarNotification notification,
+            long fingerprint, boolean quiet) {
+        mCosts.count(mCosts.slotFor(notification.pkg), PackageCostStats.UPDATES);
+        final NotificationData.Entry oldEntry = getNotificationEntry(key);
+        if (oldEntry != null && isUnchanged(oldEntry, notification, fingerprint)) {
+            // Nothing to hold back, and nothing held back for it should win over it.
+            mProgressThrottle.remove(key);
+            keepUnchanged(oldEntry, notification);
+            return;
+        }
+        if (mProgressThrottle.isEnabled()) {
+            if (oldEntry != null && !mProgressThrottle.shouldApply(key, notification,
+                        fingerprint, isProgressUpdate(oldEntry.notification, notification),
+                        mExpandedVisible, SystemClock.uptimeMillis())) {
+                scheduleProgressFlush();
                 return;
             }
+        }
+        applyNotificationUpdate(key, notification, fingerprint, quiet);
+    }
+
+    /**
+     * An update to an ongoing notification that only changes what's in its row,
+     * so that holding it back leaves nothing else stale.  A new ticker has to
+     * show, so it doesn't count.
+     */
+    private static boolean isProgressUpdate(StatusBarNotification old, StatusBarNotification n) {
+        return (n.notification.flags & Notification.FLAG_ONGOING_EVENT) != 0
+                && n.notification.flags == old.notification.flags
+                && n.notification.when == old.notification.when
+                && n.notification.icon == old.notification.icon
+                && n.notification.iconLevel == old.notification.iconLevel
+                && n.notification.number == old.notification.number
+                && TextUtils.equals(n.notification.tickerText, old.notification.tickerText);
+    }
+
+    /**
+     * Returns whether notification is an identical re-post of what entry shows,
+     * so there's nothing to reapply, rebind or reset.
+     */
+    private static boolean isUnchanged(NotificationData.Entry entry,
+            StatusBarNotification notification, long fingerprint) {
+        final Notification n = notification.notification;
+        final Notification old = entry.notification.notification;
+        return fingerprint != NotificationFingerprint.UNKNOWN
+                && fingerprint == entry.fingerprint
+                && n.when == old.when
+                && n.flags == old.flags
+                && n.icon == old.icon
+                && n.iconLevel == old.iconLevel
+                && n.number == old.number
+                && TextUtils.equals(n.tickerText, old.tickerText);
+    }
+
+    /**
+     * Keep the new notification of an unchanged entry anyway, so the row is bound
+     * from it next time.
+     */
+    private void keepUnchanged(NotificationData.Entry entry, StatusBarNotification notification) {
+        if (SPEW) Slog.d(TAG, "notification unchanged");
+        mFingerprintHits++;
+        final NotificationData list = mOngoing.getEntry(entry.key) == entry ? mOngoing : mLatest;
+        list.setNotification(entry, notification);
+    }
+
+    private void scheduleProgressFlush() {
+        mHandler.removeCallbacks(mProgressFlush);
+        if (!mExpandedVisible) {
+            // makeExpandedVisible() takes care of it
+            return;
+        }
+        final long due = mProgressThrottle.nextDue();
+        if (due >= 0) {
+            mHandler.postAtTime(mProgressFlush, due);
+        }
+    }
+
+    private final Runnable mProgressFlush = new Runnable() {
+        public void run() {
+            flushProgressUpdates(false);
+        }
+    };
+
+    /**
+     * Apply the held updates of ongoing notifications that are due, or all of them.
+     */
+    private void flushProgressUpdates(boolean all) {
+        final ArrayList<ProgressUpdateThrottle.Update> due = mDueProgressUpdates;
+        mProgressThrottle.takeDue(SystemClock.uptimeMillis(), all, due);
+        final int N = due.size();
+        if (N > 0) {
+            final boolean batch = !mInBatch;
+            if (batch) beginBatch();
+            try {
+                for (int i=0; i<N; i++) {
+                    final ProgressUpdateThrottle.Update u = due.get(i);
+                    applyNotificationUpdate(u.key, u.notification, u.fingerprint, false);
+                }
+            } finally {
+                due.clear();
+                if (batch) endBatch();
+            }
+        }
+        scheduleProgressFlush();
+    }
+
+    private void applyNotificationUpdate(IBinder key, StatusBarNotification notification,
+            long fingerprint, boolean quiet) {
+        NotificationData oldList = mOngoing;
+        NotificationData.Entry oldEntry = oldList.getEntry(key);
+        if (oldEntry == null) {
             oldList = mLatest;
+            oldEntry = oldList.getEntry(key);
+            if (oldEntry == null) {
+                Slog.w(TAG, "updateNotification for unknown key: " + key);
+                return;
+            }
         }
-        final NotificationData.Entry oldEntry = oldList.getEntryAt(oldIndex);
         final StatusBarNotification oldNotification = oldEntry.notification;
         final RemoteViews oldContentView = oldNotification.notification.contentView;
 
         final RemoteViews contentView = notification.notification.contentView;
 
+        // Identical re-post?  Then there's nothing to reapply, rebind or reset.
+        if (isUnchanged(oldEntry, notification, fingerprint)) {
+            keepUnchanged(oldEntry, notification);
+            return;
+        }
+        mFingerprintMisses++;
+
         if (false) {
             Slog.d(TAG, "old notification: when=" + oldNotification.notification.when
                     + " ongoing=" + oldNotification.isOngoing()
@@ -640,70 +918,245 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         // didn't change.
         if (notification.notification.when == oldNotification.notification.when
                 && notification.isOngoing() == oldNotification.isOngoing()
-                && oldEntry.expanded != null
                 && contentView != null && oldContentView != null
                 && contentView.getPackage() != null
                 && oldContentView.getPackage() != null
                 && oldContentView.getPackage().equals(contentView.getPackage())
                 && oldContentView.getLayoutId() == contentView.getLayoutId()) {
             if (SPEW) Slog.d(TAG, "reusing notification");
-            oldEntry.notification = notification;
-            try {
-                // Reapply the RemoteViews
-                contentView.reapply(this, oldEntry.content);
-                // update the contentIntent
-                final PendingIntent contentIntent = notification.notification.contentIntent;
-                if (contentIntent != null) {
-                    oldEntry.content.setOnClickListener(new Launcher(contentIntent,
-                                notification.pkg, notification.tag, notification.id));
-                }
-                // Update the icon.
-                final StatusBarIcon ic = new StatusBarIcon(notification.pkg,
-                        notification.notification.icon, notification.notification.iconLevel,
-                        notification.notification.number);
-                if (!oldEntry.icon.set(ic)) {
-                    handleNotificationError(key, notification, "Couldn't update icon: " + ic);
-                    return;
-                }
+            oldList.setNotification(oldEntry, notification);
+            oldEntry.fingerprint = fingerprint;
+            // update the contentIntent
+            final PendingIntent contentIntent = notification.notification.contentIntent;
+            if (contentIntent != null) {
+                oldEntry.content.setOnClickListener(new Launcher(contentIntent,
+                            notification.pkg, notification.tag, notification.id));
             }
-            catch (RuntimeException e) {
-                // It failed to add cleanly.  Log, and remove the view from the panel.
-                Slog.w(TAG, "Couldn't reapply views for package " + contentView.getPackage(), e);
-                removeNotificationViews(key);
-                addNotificationViews(key, notification);
+            // Reapply the RemoteViews and update the icon in the next slice.  A row
+            // without a content view gets the new RemoteViews when it's bound again.
+            if (oldEntry.expanded != null && (oldEntry.queuedWork & WORK_REAPPLY) == 0) {
+                oldEntry.queuedWork |= WORK_REAPPLY;
+                mViewWork.enqueue(mExpandedVisible ? ViewWorkScheduler.PRIORITY_VISIBLE_ROW
+                        : ViewWorkScheduler.PRIORITY_OFFSCREEN_ROW, new ReapplyWork(oldEntry));
+            }
+            if ((oldEntry.queuedWork & WORK_ICON) == 0) {
+                oldEntry.queuedWork |= WORK_ICON;
+                mViewWork.enqueue(ViewWorkScheduler.PRIORITY_ICON, new IconWork(oldEntry));
             }
         } else {
             if (SPEW) Slog.d(TAG, "not reusing notification");
             removeNotificationViews(key);
-            addNotificationViews(key, notification);
+            if (addNotificationViews(key, notification) != null) {
+                getNotificationEntry(key).fingerprint = fingerprint;
+            }
         }
 
         // Restart the ticker if it's still running
-        if (notification.notification.tickerText != null
+        if (!quiet && notification.notification.tickerText != null
                 && !TextUtils.equals(notification.notification.tickerText,
                     oldEntry.notification.notification.tickerText)) {
             tick(notification);
         }
 
         // Recalculate the position of the sliding windows and the titles.
-        setAreThereNotifications();
-        updateExpandedViewPos(EXPANDED_LEAVE_ALONE);
+        notificationsChanged();
     }
 
     public void removeNotification(IBinder key) {
         if (SPEW) Slog.d(TAG, "removeNotification key=" + key);
         StatusBarNotification old = removeNotificationViews(key);
+        mProgressThrottle.remove(key);
 
         if (old != null) {
+            mCosts.count(mCosts.slotFor(old.pkg), PackageCostStats.REMOVES);
+
             // Cancel the ticker if it's still running
             mTicker.removeEntry(old);
 
             // Recalculate the position of the sliding windows and the titles.
-            setAreThereNotifications();
-            updateExpandedViewPos(EXPANDED_LEAVE_ALONE);
+            notificationsChanged();
+
+            if (mClearingAll && isClearable(old) && --mClearAllRemaining == 0) {
+                endClearAll();
+            }
         }
     }
 
+    private static boolean isClearable(StatusBarNotification notification) {
+        // the notifications NotificationManagerService.cancelAll() takes
+        return (notification.notification.flags
+                & (Notification.FLAG_ONGOING_EVENT | Notification.FLAG_NO_CLEAR)) == 0;
+    }
+
+    /**
+     * Hold the removals of a clear all, which come in over as many batches as
+     * the binder calls happen to spread across, until the last clearable
+     * notification is gone.  Then their rows and icons are detached and the
+     * panel laid out once.
+     */
+    private void beginClearAll() {
+        int clearable = 0;
+        final int N = mLatest.size();
+        for (int i=0; i<N; i++) {
+            if (isClearable(mLatest.getEntryAt(i).notification)) {
+                clearable++;
+            }
+        }
+        if (clearable == 0) {
+            return;
+        }
+        mClearingAll = true;
+        mClearAllRemaining = clearable;
+        mClearAlls++;
+        mHandler.removeCallbacks(mClearAllTimeout);
+        mHandler.postDelayed(mClearAllTimeout, MAX_CLEAR_ALL_DURATION);
+    }
+
+    private void endClearAll() {
+        if (!mClearingAll) {
+            return;
+        }
+        mClearingAll = false;
+        mHandler.removeCallbacks(mClearAllTimeout);
+        if (mInBatch) {
+            // endBatch() finishes it
+            return;
+        }
+        detachPendingViews();
+        if (mBatchNotificationsChanged) {
+            mBatchNotificationsChanged = false;
+            notificationsChanged();
+        }
+    }
+
+    private final Runnable mClearAllTimeout = new Runnable() {
+        public void run() {
+            if (mClearingAll) {
+                // some of them were not cleared after all, or went away another way
+                mClearAllTimeouts++;
+                endClearAll();
+            }
+        }
+    };
+
+    public void beginBatch() {
+        mInBatch = true;
+    }
+
+    public void endBatch() {
+        mInBatch = false;
+        if (!mClearingAll) {
+            detachPendingViews();
+        }
+        if (mBatchNotificationsChanged) {
+            mBatchNotificationsChanged = false;
+            notificationsChanged();
+        }
+    }
+
+    /**
+     * Detach the rows and icons of the notifications removed in this batch, a run
+     * of adjacent views at a time, and lay their parents out once.  While the
+     * panel is frozen only the icons go; the rows wait for thawPanel().
+     */
+    private void detachPendingViews() {
+        if (mPendingDetach.isEmpty()) {
+            return;
+        }
+        mBulkDetaches++;
+        mBulkDetachedViews += mPendingDetach.size();
+        detachPendingViews(mNotificationIcons);
+        if (mPanelFrozen) {
+            return;
+        }
+        detachPendingViews(mOngoingItems);
+        detachPendingViews(mLatestItems);
+        mPendingDetach.clear();
+    }
+
+    private void detachPendingViews(ViewGroup parent) {
+        boolean detached = false;
+        int end = parent.getChildCount();
+        while (end > 0) {
+            if (!mPendingDetach.contains(parent.getChildAt(end - 1))) {
+                end--;
+                continue;
+            }
+            int start = end - 1;
+            while (start > 0 && mPendingDetach.contains(parent.getChildAt(start - 1))) {
+                start--;
+            }
+            final ArrayList<NotificationData.Entry> recycle = mTmpRecycle;
+            for (int i=start; i<end; i++) {
+                final View child = parent.getChildAt(i);
+                mPendingDetach.remove(child);
+                final NotificationData.Entry entry = mRecycleOnDetach.remove(child);
+                if (entry != null) {
+                    recycle.add(entry);
+                }
+            }
+            parent.removeViewsInLayout(start, end - start);
+            final int N = recycle.size();
+            for (int i=0; i<N; i++) {
+                recycleRow(recycle.get(i));
+            }
+            recycle.clear();
+            detached = true;
+            end = start;
+        }
+        if (detached) {
+            parent.requestLayout();
+            parent.invalidate();
+        }
+    }
+
+    /**
+     * Send swipe dismissals to the bar service together at the next frame tick, so
+     * that the removals coming back land in one batch too.
+     */
+    private void queueSwipeClear(StatusBarNotification notification) {
+        mPendingSwipeClears.add(notification);
+        if (mPendingSwipeClears.size() == 1) {
+            final long now = SystemClock.uptimeMillis();
+            mHandler.postAtTime(mSendSwipeClears,
+                    now - (now % ANIM_FRAME_DURATION) + ANIM_FRAME_DURATION);
+        }
+    }
+
+    private final Runnable mSendSwipeClears = new Runnable() {
+        public void run() {
+            final int N = mPendingSwipeClears.size();
+            for (int i=0; i<N; i++) {
+                final StatusBarNotification n = mPendingSwipeClears.get(i);
+                try {
+                    mBarService.onNotificationClear(n.pkg, n.tag, n.id);
+                } catch (RemoteException e) {
+                    // Skip it, don't crash.
+                }
+            }
+            mPendingSwipeClears.clear();
+        }
+    };
+
+    /**
+     * Recalculate the titles, the clear button and the position of the sliding
+     * windows after a notification change, or once at the end of the batch.
+     */
+    private void notificationsChanged() {
+        mFrameStats.noteChange();
+        if (mInBatch || mClearingAll) {
+            mBatchNotificationsChanged = true;
+            return;
+        }
+        if (mPanelFrozen) {
+            mFrozenNotificationsChanged = true;
+            return;
+        }
+        updateDigests();
+        setAreThereNotifications();
+        updateExpandedViewPos(EXPANDED_LEAVE_ALONE);
+    }
+
     private int chooseIconIndex(boolean isOngoing, int viewIndex) {
         final int latestSize = mLatest.size();
         if (isOngoing) {
@@ -713,42 +1166,57 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         }
     }
 
-    View[] makeNotificationView(final StatusBarNotification notification, ViewGroup parent) {
+    /**
+     * Make the row for a notification.  If inflate is false the RemoteViews is
+     * left unapplied and the returned content view is null; the row will get
+     * one from updateBoundRows() or the idle inflater.
+     */
+    View[] makeNotificationView(final StatusBarNotification notification, ViewGroup parent,
+            boolean inflate) {
         Notification n = notification.notification;
         RemoteViews remoteViews = n.contentView;
         if (remoteViews == null) {
             return null;
         }
 
-        // create the row view
-        LayoutInflater inflater = (LayoutInflater)getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        LatestItemContainer row = (LatestItemContainer) inflater.inflate(R.layout.status_bar_latest_event, parent, false);
+        // create the row view, or reuse the row of a removed notification with the same layout
+        LatestItemContainer row = (LatestItemContainer)mRowPool.obtain(remoteViews.getPackage(),
+                remoteViews.getLayoutId());
+        ViewGroup content;
+        if (row != null) {
+            // recycleRow() already took the old content view out
+            content = (ViewGroup)row.findViewById(R.id.content);
+            content.setOnClickListener(null);
+        } else {
+            LayoutInflater inflater = (LayoutInflater)getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            row = (LatestItemContainer) inflater.inflate(R.layout.status_bar_latest_event, parent, false);
+            content = (ViewGroup)row.findViewById(R.id.content);
+            content.setDescendantFocusability(ViewGroup.FOCUS_BLOCK_DESCENDANTS);
+            content.setOnFocusChangeListener(mFocusChangeListener);
+        }
         if ((n.flags & Notification.FLAG_ONGOING_EVENT) == 0 && (n.flags & Notification.FLAG_NO_CLEAR) == 0) {
             row.setOnSwipeCallback(mTouchDispatcher, new Runnable() {
                 public void run() {
-                    try {
-                        mBarService.onNotificationClear(notification.pkg, notification.tag, notification.id);
-                    } catch (RemoteException e) {
-                        // Skip it, don't crash.
-                    }
+                    queueSwipeClear(notification);
                 }
             });
         }
 
         // bind the click event to the content area
-        ViewGroup content = (ViewGroup)row.findViewById(R.id.content);
-        content.setDescendantFocusability(ViewGroup.FOCUS_BLOCK_DESCENDANTS);
-        content.setOnFocusChangeListener(mFocusChangeListener);
         PendingIntent contentIntent = n.contentIntent;
         if (contentIntent != null) {
             content.setOnClickListener(new Launcher(contentIntent, notification.pkg,
                         notification.tag, notification.id));
         }
 
+        if (!inflate) {
+            return new View[] { row, content, null };
+        }
+
         View expanded = null;
         Exception exception = null;
         try {
-            expanded = remoteViews.apply(this, content);
+            expanded = applyContentView(notification, remoteViews, content);
         }
         catch (RuntimeException e) {
             exception = e;
@@ -759,13 +1227,512 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
             return null;
         } else {
             content.addView(expanded);
-            row.setDrawingCacheEnabled(true);
         }
 
         return new View[] { row, content, expanded };
     }
 
+    /**
+     * Returns who a content view was built for.  Only that notification may
+     * reapply onto it again: reapply() only runs the new RemoteViews' actions,
+     * so whatever another notification set and this one doesn't (a hidden
+     * view, a bitmap, a click intent) would show through.  That's the same as
+     * reapplying an update onto a notification's own view.
+     */
+    private static String contentOwner(StatusBarNotification notification) {
+        return notification.pkg + "/" + notification.tag + "/0x"
+                + Integer.toHexString(notification.id);
+    }
+
+    /**
+     * Inflate remoteViews for the given parent, reapplying it onto a pooled view
+     * that was built for the same notification with the same layout when there
+     * is one.
+     */
+    private View applyContentView(StatusBarNotification notification, RemoteViews remoteViews,
+            ViewGroup parent) {
+        final int slot = mCosts.slotFor(remoteViews.getPackage());
+        final long start = System.nanoTime();
+        final View pooled = mContentViewPool.obtain(remoteViews.getPackage(),
+                remoteViews.getLayoutId(), contentOwner(notification));
+        if (pooled != null) {
+            remoteViews.reapply(this, pooled);
+            mCosts.recordTime(slot, PackageCostStats.REAPPLY, System.nanoTime() - start);
+            return pooled;
+        }
+        final View view = remoteViews.apply(this, parent);
+        mCosts.recordTime(slot, PackageCostStats.APPLY, System.nanoTime() - start);
+        return view;
+    }
+
+    /**
+     * Rough memory held by an inflated content view: a fixed amount per view, plus
+     * the bitmaps it shows.
+     */
+    private static int estimateViewBytes(View view) {
+        int bytes = VIEW_OVERHEAD_BYTES;
+        if (view instanceof ImageView) {
+            final Drawable d = ((ImageView)view).getDrawable();
+            if (d instanceof BitmapDrawable) {
+                final Bitmap b = ((BitmapDrawable)d).getBitmap();
+                if (b != null) {
+                    bytes += b.getRowBytes() * b.getHeight();
+                }
+            }
+        } else if (view instanceof ViewGroup) {
+            final ViewGroup group = (ViewGroup)view;
+            final int N = group.getChildCount();
+            for (int i=0; i<N; i++) {
+                bytes += estimateViewBytes(group.getChildAt(i));
+            }
+        }
+        return bytes;
+    }
+
+    private void setRowBytes(NotificationData.Entry entry, int bytes) {
+        mCosts.addBytes(entry.costSlot, PackageCostStats.ROW_BYTES, bytes - entry.rowBytes);
+        entry.rowBytes = bytes;
+    }
+
+    private boolean bindContentView(NotificationData.Entry entry) {
+        final ViewGroup content = (ViewGroup)entry.content;
+        final RemoteViews remoteViews = entry.notification.notification.contentView;
+        View expanded = null;
+        try {
+            expanded = applyContentView(entry.notification, remoteViews, content);
+        } catch (RuntimeException e) {
+            Slog.e(TAG, "couldn't rebind view for notification " + entry.notification.pkg
+                    + "/0x" + Integer.toHexString(entry.notification.id), e);
+        }
+        if (expanded == null) {
+            return false;
+        }
+        attachContentView(entry, expanded);
+        return true;
+    }
+
+    private void attachContentView(NotificationData.Entry entry, View expanded) {
+        ((ViewGroup)entry.content).addView(expanded);
+        entry.expanded = expanded;
+        setRowBytes(entry, estimateViewBytes(expanded));
+        if (mExpandedVisible) {
+            mDrawingCaches.request(entry.row, entry.costSlot);
+        }
+    }
+
+    private void initialRowsAdded(int count, long start) {
+        mInitialRowsMillis = SystemClock.uptimeMillis() - start;
+        Slog.i(TAG, "Added " + count + " notification rows in " + mInitialRowsMillis + "ms"
+                + (mPreInflater != null ? ", inflating in the background" : ""));
+        if (mPreInflater != null) {
+            preInflateRows();
+        }
+    }
+
+    /**
+     * Inflate the content views of the rows that would otherwise be inflated on
+     * the main thread right away (all of them, without lazy inflation) on the
+     * worker threads, and attach them in one pass once they're all done.
+     */
+    private void preInflateRows() {
+        final int limit = mLazyInflation ? MAX_IDLE_INFLATED_ROWS : Integer.MAX_VALUE;
+        final ArrayList<NotificationData.Entry> entries = new ArrayList<NotificationData.Entry>();
+        collectUnboundRows(mOngoing, limit, entries);
+        collectUnboundRows(mLatest, limit - entries.size(), entries);
+        final int N = entries.size();
+        final RemoteViews[] remoteViews = new RemoteViews[N];
+        for (int i=0; i<N; i++) {
+            remoteViews[i] = entries.get(i).notification.notification.contentView;
+        }
+        mPreInflating = true;
+        mPreInflater.inflate(remoteViews, new NotificationPreInflater.Callback() {
+            public void onInflated(RemoteViews[] remoteViews, View[] views, long[] nanos,
+                    long elapsedMillis) {
+                mPreInflating = false;
+                mPreInflateMillis = elapsedMillis;
+                // only ever used for the rows there are at startup
+                mPreInflater.quit();
+                int attached = 0;
+                for (int i=0; i<N; i++) {
+                    final NotificationData.Entry entry = entries.get(i);
+                    if (entry.expanded != null || entry.digested || !isCurrent(entry)) {
+                        // bound, folded into a digest or removed in the meantime
+                        continue;
+                    }
+                    if (views[i] == null
+                            || entry.notification.notification.contentView != remoteViews[i]) {
+                        // failed off-thread, or updated since; do it on the main thread
+                        mPreInflateFallbacks++;
+                        queueBind(entry, ViewWorkScheduler.PRIORITY_OFFSCREEN_ROW);
+                        continue;
+                    }
+                    mCosts.recordTime(entry.costSlot, PackageCostStats.APPLY, nanos[i]);
+                    attachContentView(entry, views[i]);
+                    attached++;
+                }
+                Slog.i(TAG, "Pre-inflated " + attached + " of " + N + " notification rows in "
+                        + elapsedMillis + "ms");
+                scheduleIdleInflation();
+            }
+        });
+    }
+
+    /**
+     * Nobody can see the bar while the screen is off, so hold back icon and
+     * notification changes until it comes back on, and apply them in one batch.
+     */
+    private void setScreenOn(boolean on) {
+        mIconPolicy.setScreenOn(on);
+        mCommandQueue.setGated(!on);
+    }
+
+    /**
+     * Hold back attaching and detaching rows, and the section and position updates
+     * after notification changes, while the panel is dragged or animating, so that
+     * the panel contents don't get laid out again between frames.
+     */
+    private void freezePanel() {
+        if (!mFreezePanel || mPanelFrozen) {
+            return;
+        }
+        mPanelFrozen = true;
+        mHandler.removeCallbacks(mPanelThawTimeout);
+        mHandler.postDelayed(mPanelThawTimeout, MAX_PANEL_FREEZE_DURATION);
+    }
+
+    /**
+     * Apply the held back panel changes in one pass, once the panel is at rest.
+     */
+    private void thawPanel() {
+        if (!mPanelFrozen || mTracking || mAnimating) {
+            return;
+        }
+        forceThawPanel();
+    }
+
+    private void forceThawPanel() {
+        mPanelFrozen = false;
+        mPanelThaws++;
+        mHandler.removeCallbacks(mPanelThawTimeout);
+        if (!mClearingAll || !mPendingAttach.isEmpty()) {
+            // rows are only attached at the right index once the removed ones are out
+            detachPendingViews();
+        }
+        if (!mPendingAttach.isEmpty()) {
+            attachPendingRows(mOngoing, mOngoingItems);
+            attachPendingRows(mLatest, mLatestItems);
+            mPendingAttach.clear();
+        }
+        if (mFrozenNotificationsChanged) {
+            mFrozenNotificationsChanged = false;
+            notificationsChanged();
+        }
+    }
+
+    private void attachPendingRows(NotificationData list, ViewGroup parent) {
+        // in list order, so every row before i is in place already
+        final int N = list.size();
+        for (int i=0; i<N; i++) {
+            final View row = list.getEntryAt(i).row;
+            if (mPendingAttach.contains(row)) {
+                parent.addView(row, i);
+            }
+        }
+    }
+
+    private final Runnable mPanelThawTimeout = new Runnable() {
+        public void run() {
+            if (mPanelFrozen) {
+                // a touch stream that was never finished, most likely
+                Slog.w(TAG, "Panel frozen for " + MAX_PANEL_FREEZE_DURATION + "ms, thawing");
+                mPanelThawTimeouts++;
+                forceThawPanel();
+            }
+        }
+    };
+
+    private static void collectUnboundRows(NotificationData list, int count,
+            ArrayList<NotificationData.Entry> out) {
+        final int N = Math.min(list.size(), count);
+        for (int i=0; i<N; i++) {
+            final NotificationData.Entry entry = list.getEntryAt(i);
+            if (entry.expanded == null && !entry.digested) {
+                out.add(entry);
+            }
+        }
+    }
+
+    private void recycleRow(NotificationData.Entry entry) {
+        final RemoteViews remoteViews = entry.notification.notification.contentView;
+        if (remoteViews == null || remoteViews.getPackage() == null) {
+            return;
+        }
+        final LatestItemContainer row = (LatestItemContainer)entry.row;
+        row.prepareForReuse();
+        if (entry.expanded != null) {
+            // The next notification to get this row gets a content view of its own.
+            ((ViewGroup)entry.content).removeView(entry.expanded);
+            mContentViewPool.recycle(remoteViews.getPackage(), remoteViews.getLayoutId(),
+                    contentOwner(entry.notification), entry.expanded);
+            entry.expanded = null;
+        }
+        mRowPool.recycle(remoteViews.getPackage(), remoteViews.getLayoutId(), row);
+    }
+
+    private void unbindContentView(NotificationData.Entry entry) {
+        final RemoteViews remoteViews = entry.notification.notification.contentView;
+        ((ViewGroup)entry.content).removeView(entry.expanded);
+        mContentViewPool.recycle(remoteViews.getPackage(), remoteViews.getLayoutId(),
+                contentOwner(entry.notification), entry.expanded);
+        entry.expanded = null;
+        setRowBytes(entry, 0);
+        mDrawingCaches.release(entry.row);
+    }
+
+    /**
+     * Give content views to the rows that are in or within a screen of the
+     * viewport of the expanded panel, and take them back from rows that are
+     * further away.  The rows themselves have a fixed height and stay in
+     * place, so scrolling and the section layout aren't affected.
+     */
+    void updateBoundRows() {
+        mUpdateBoundRowsPosted = false;
+        if (!mExpandedVisible) {
+            return;
+        }
+        final ScrollView scroll = mBottomBar ? mBottomScrollView : mScrollView;
+        final int height = scroll.getHeight();
+        if (height == 0) {
+            return;
+        }
+        final int scrollY = scroll.getScrollY();
+        final int top = scrollY - height;
+        final int bottom = scrollY + 2 * height;
+        unbindRowsOutside(mOngoing, mOngoingItems, top, bottom);
+        unbindRowsOutside(mLatest, mLatestItems, top, bottom);
+
+        // Rows on screen first, then the ones around it.
+        queueBindsInRange(mOngoing, mOngoingItems, scrollY, scrollY + height,
+                ViewWorkScheduler.PRIORITY_VISIBLE_ROW);
+        queueBindsInRange(mLatest, mLatestItems, scrollY, scrollY + height,
+                ViewWorkScheduler.PRIORITY_VISIBLE_ROW);
+        queueBindsInRange(mOngoing, mOngoingItems, top, bottom,
+                ViewWorkScheduler.PRIORITY_OFFSCREEN_ROW);
+        queueBindsInRange(mLatest, mLatestItems, top, bottom,
+                ViewWorkScheduler.PRIORITY_OFFSCREEN_ROW);
+
+        // Drawing caches for the bound rows around the viewport, with the ones on
+        // screen used most recently, so they're the last to lose theirs.
+        requestDrawingCaches(mOngoing, mOngoingItems, top, bottom);
+        requestDrawingCaches(mLatest, mLatestItems, top, bottom);
+        requestDrawingCaches(mOngoing, mOngoingItems, scrollY, scrollY + height);
+        requestDrawingCaches(mLatest, mLatestItems, scrollY, scrollY + height);
+    }
+
+    private void requestDrawingCaches(NotificationData list, ViewGroup parent, int top,
+            int bottom) {
+        final int offset = parent.getTop();
+        final int N = list.size();
+        for (int i=0; i<N; i++) {
+            final NotificationData.Entry entry = list.getEntryAt(i);
+            final View row = entry.row;
+            if (entry.expanded != null && row.getParent() != null
+                    && row.getBottom() + offset >= top && row.getTop() + offset <= bottom) {
+                mDrawingCaches.request(row, entry.costSlot);
+            }
+        }
+    }
+
+    private void queueBindsInRange(NotificationData list, ViewGroup parent, int top, int bottom,
+            int priority) {
+        final int offset = parent.getTop();
+        final int N = list.size();
+        for (int i=0; i<N; i++) {
+            final NotificationData.Entry entry = list.getEntryAt(i);
+            final View row = entry.row;
+            // Digested rows are gone and rows waiting for the panel to thaw aren't
+            // attached yet; either way their bounds are stale.
+            if (entry.expanded == null && !entry.digested && row.getParent() != null
+                    && row.getBottom() + offset >= top && row.getTop() + offset <= bottom) {
+                queueBind(entry, priority);
+            }
+        }
+    }
+
+    private void unbindRowsOutside(NotificationData list, ViewGroup parent, int top, int bottom) {
+        final int offset = parent.getTop();
+        final int N = list.size();
+        for (int i=0; i<N; i++) {
+            final NotificationData.Entry entry = list.getEntryAt(i);
+            final View row = entry.row;
+            if (entry.expanded != null && row.getParent() != null
+                    && (row.getBottom() + offset < top || row.getTop() + offset > bottom)) {
+                unbindContentView(entry);
+            }
+        }
+    }
+
+    private void queueBind(NotificationData.Entry entry, int priority) {
+        final int bit = priority == ViewWorkScheduler.PRIORITY_VISIBLE_ROW
+                ? WORK_BIND_VISIBLE : WORK_BIND_OFFSCREEN;
+        if ((entry.queuedWork & bit) == 0) {
+            entry.queuedWork |= bit;
+            mViewWork.enqueue(priority, new BindWork(entry, bit));
+        }
+    }
+
+    /**
+     * Returns whether entry is still the one displayed for its key.  Queued work
+     * can outlive the entry it was queued for.
+     */
+    private boolean isCurrent(NotificationData.Entry entry) {
+        return getNotificationEntry(entry.key) == entry;
+    }
+
+    private NotificationData.Entry getNotificationEntry(IBinder key) {
+        final NotificationData.Entry entry = mOngoing.getEntry(key);
+        return entry != null ? entry : mLatest.getEntry(key);
+    }
+
+    private final class BindWork implements Runnable {
+        private final NotificationData.Entry mEntry;
+        private final int mBit;
+
+        BindWork(NotificationData.Entry entry, int bit) {
+            mEntry = entry;
+            mBit = bit;
+        }
+
+        public void run() {
+            mEntry.queuedWork &= ~mBit;
+            if (mEntry.expanded != null || mEntry.digested || !isCurrent(mEntry)) {
+                return;
+            }
+            if (!bindContentView(mEntry)) {
+                handleNotificationError(mEntry.key, mEntry.notification,
+                        "Couldn't expand RemoteViews for: " + mEntry.notification);
+            }
+        }
+    }
+
+    private final class ReapplyWork implements Runnable {
+        private final NotificationData.Entry mEntry;
+
+        ReapplyWork(NotificationData.Entry entry) {
+            mEntry = entry;
+        }
+
+        public void run() {
+            mEntry.queuedWork &= ~WORK_REAPPLY;
+            if (mEntry.expanded == null || !isCurrent(mEntry)) {
+                return;
+            }
+            final RemoteViews contentView = mEntry.notification.notification.contentView;
+            try {
+                final long start = System.nanoTime();
+                contentView.reapply(StatusBarService.this, mEntry.content);
+                mCosts.recordTime(mEntry.costSlot, PackageCostStats.REAPPLY,
+                        System.nanoTime() - start);
+            } catch (RuntimeException e) {
+                // It failed to add cleanly.  Log, and rebuild the views from scratch.
+                Slog.w(TAG, "Couldn't reapply views for package " + contentView.getPackage(), e);
+                final IBinder key = mEntry.key;
+                final StatusBarNotification notification = mEntry.notification;
+                removeNotificationViews(key);
+                addNotificationViews(key, notification);
+                notificationsChanged();
+            }
+        }
+    }
+
+    private final class IconWork implements Runnable {
+        private final NotificationData.Entry mEntry;
+
+        IconWork(NotificationData.Entry entry) {
+            mEntry = entry;
+        }
+
+        public void run() {
+            mEntry.queuedWork &= ~WORK_ICON;
+            if (!isCurrent(mEntry)) {
+                return;
+            }
+            final StatusBarNotification n = mEntry.notification;
+            final StatusBarIcon ic = new StatusBarIcon(n.pkg, n.notification.icon,
+                    n.notification.iconLevel, n.notification.number);
+            final long start = System.nanoTime();
+            final boolean set = mEntry.icon.set(ic);
+            mCosts.recordTime(mEntry.costSlot, PackageCostStats.ICON, System.nanoTime() - start);
+            if (!set) {
+                handleNotificationError(mEntry.key, n, "Couldn't update icon: " + ic);
+            }
+        }
+    }
+
+    void scheduleIdleInflation() {
+        if (!mIdleInflaterQueued) {
+            mIdleInflaterQueued = true;
+            Looper.myQueue().addIdleHandler(mIdleInflater);
+        }
+    }
+
+    /**
+     * While the panel is closed, queue the top rows for inflation once the main
+     * thread has nothing else to do, so that opening it is cheap.  Once the panel
+     * is open, updateBoundRows() is in charge.
+     */
+    private final MessageQueue.IdleHandler mIdleInflater = new MessageQueue.IdleHandler() {
+        public boolean queueIdle() {
+            mIdleInflaterQueued = false;
+            if (!mExpandedVisible && !mPreInflating) {
+                queueTopBinds(mOngoing, MAX_IDLE_INFLATED_ROWS);
+                queueTopBinds(mLatest, MAX_IDLE_INFLATED_ROWS - mOngoing.size());
+            }
+            return false;
+        }
+    };
+
+    private void queueTopBinds(NotificationData list, int count) {
+        final int N = Math.min(list.size(), count);
+        for (int i=0; i<N; i++) {
+            final NotificationData.Entry entry = list.getEntryAt(i);
+            if (entry.expanded == null && !entry.digested) {
+                queueBind(entry, ViewWorkScheduler.PRIORITY_OFFSCREEN_ROW);
+            }
+        }
+    }
+
+    void scheduleUpdateBoundRows() {
+        if (!mUpdateBoundRowsPosted) {
+            mUpdateBoundRowsPosted = true;
+            mHandler.post(mUpdateBoundRows);
+        }
+    }
+
+    private final Runnable mUpdateBoundRows = new Runnable() {
+        public void run() {
+            updateBoundRows();
+        }
+    };
+
+    // Both fire during traversals, so just schedule the rebinding for later.
+    private final ViewTreeObserver.OnScrollChangedListener mPanelScrollListener =
+            new ViewTreeObserver.OnScrollChangedListener() {
+        public void onScrollChanged() {
+            scheduleUpdateBoundRows();
+        }
+    };
+
+    private final ViewTreeObserver.OnGlobalLayoutListener mPanelLayoutListener =
+            new ViewTreeObserver.OnGlobalLayoutListener() {
+        public void onGlobalLayout() {
+            scheduleUpdateBoundRows();
+        }
+    };
+
     StatusBarIconView addNotificationViews(IBinder key, StatusBarNotification notification) {
+        // Insertion indices are only right once the removed views are gone.
+        detachPendingViews();
         NotificationData list;
         ViewGroup parent;
         final boolean isOngoing = notification.isOngoing();
@@ -777,7 +1744,8 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
             parent = mLatestItems;
         }
         // Construct the expanded view.
-        final View[] views = makeNotificationView(notification, parent);
+        final View[] views = makeNotificationView(notification, parent,
+                !mLazyInflation && !mAddingInitialRows);
         if (views == null) {
             handleNotificationError(key, notification, "Couldn't expand RemoteViews for: "
                     + notification);
@@ -791,16 +1759,32 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
                 notification.pkg + "/0x" + Integer.toHexString(notification.id));
         final StatusBarIcon ic = new StatusBarIcon(notification.pkg, notification.notification.icon,
                     notification.notification.iconLevel, notification.notification.number);
-        if (!iconView.set(ic)) {
+        final int slot = mCosts.slotFor(notification.pkg);
+        final long start = System.nanoTime();
+        final boolean set = iconView.set(ic);
+        mCosts.recordTime(slot, PackageCostStats.ICON, System.nanoTime() - start);
+        if (!set) {
             handleNotificationError(key, notification, "Coulding create icon: " + ic);
             return null;
         }
         // Add the expanded view.
         final int viewIndex = list.add(key, notification, row, content, expanded, iconView);
-        parent.addView(row, viewIndex);
+        final NotificationData.Entry entry = list.getEntryAt(viewIndex);
+        entry.costSlot = slot;
+        if (expanded != null) {
+            setRowBytes(entry, estimateViewBytes(expanded));
+        }
+        if (mPanelFrozen) {
+            mPendingAttach.add(row);
+        } else {
+            parent.addView(row, viewIndex);
+        }
         // Add the icon.
         final int iconIndex = chooseIconIndex(isOngoing, viewIndex);
         mNotificationIcons.addView(iconView, iconIndex);
+        if (expanded == null) {
+            scheduleIdleInflation();
+        }
         return iconView;
     }
 
@@ -813,10 +1797,33 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
                 return null;
             }
         }
-        // Remove the expanded view.
-        ((ViewGroup)entry.row.getParent()).removeView(entry.row);
-        // Remove the icon.
-        ((ViewGroup)entry.icon.getParent()).removeView(entry.icon);
+        // Remove the expanded view and the icon, or leave them for detachPendingViews()
+        // at the end of the batch, or the row until the panel thaws.  Keep the row for
+        // the next notification with this layout, but only once it's off the panel;
+        // a row that's still attached can't be handed out again.
+        mDrawingCaches.release(entry.row);
+        setRowBytes(entry, 0);
+        if (mPendingAttach.remove(entry.row)) {
+            // added while frozen, never attached
+            recycleRow(entry);
+        } else if (mInBatch || mPanelFrozen || mClearingAll) {
+            mPendingDetach.add(entry.row);
+            mRecycleOnDetach.put(entry.row, entry);
+            if (mPanelFrozen || mClearingAll) {
+                // Until the thaw or the end of the clear all takes it out, leave a
+                // hole rather than a row that can still be clicked or swiped.  Unlike
+                // GONE, that doesn't lay out the panel again.
+                entry.row.setVisibility(View.INVISIBLE);
+            }
+        } else {
+            ((ViewGroup)entry.row.getParent()).removeView(entry.row);
+            recycleRow(entry);
+        }
+        if (mInBatch || mClearingAll) {
+            mPendingDetach.add(entry.icon);
+        } else {
+            ((ViewGroup)entry.icon.getParent()).removeView(entry.icon);
+        }
 
         return entry.notification;
     }
@@ -844,6 +1851,167 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         }
     }
 
+    /**
+     * The latest notifications of one package beyond the newest mDigestLimit, and
+     * the summary row and icon standing in for them.
+     */
+    private static final class Digest {
+        final String pkg;
+        CharSequence label;
+        int shown;
+        int hidden;
+        int iconId; // icon of the newest hidden notification
+        View row;
+        ImageView image;
+        TextView text;
+        StatusBarIconView icon;
+
+        Digest(String pkg) {
+            this.pkg = pkg;
+        }
+    }
+
+    /**
+     * Fold the latest notifications of each package beyond the newest mDigestLimit
+     * into a digest.  The entries stay in mLatest with their rows in place, gone and
+     * without content views, so that opening the digest only has to show them again.
+     * The summary rows and icons go after all the others, so they don't shift the
+     * indices the rows and icons of the entries are inserted at.
+     */
+    private void updateDigests() {
+        if (mDigestLimit <= 0) {
+            return;
+        }
+        final HashMap<String, Digest> digests = mDigests;
+        for (Digest d : digests.values()) {
+            d.shown = 0;
+            d.hidden = 0;
+        }
+        // newest first, so the newest rows of each package are the ones left showing
+        for (int i=mLatest.size()-1; i>=0; i--) {
+            final NotificationData.Entry entry = mLatest.getEntryAt(i);
+            final String pkg = entry.notification.pkg;
+            Digest d = digests.get(pkg);
+            if (d == null) {
+                d = new Digest(pkg);
+                digests.put(pkg, d);
+            }
+            final boolean digested = d.shown >= mDigestLimit && !mExpandedDigests.contains(pkg);
+            if (digested) {
+                if (d.hidden == 0) {
+                    d.iconId = entry.notification.notification.icon;
+                }
+                d.hidden++;
+            } else {
+                d.shown++;
+            }
+            setDigested(entry, digested);
+        }
+        mDigestedRows = 0;
+        final Iterator<Digest> it = digests.values().iterator();
+        while (it.hasNext()) {
+            final Digest d = it.next();
+            if (d.hidden > 0) {
+                mDigestedRows += d.hidden;
+                bindDigestViews(d);
+            } else {
+                removeDigestViews(d);
+                if (d.shown == 0) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void setDigested(NotificationData.Entry entry, boolean digested) {
+        if (entry.digested == digested) {
+            return;
+        }
+        entry.digested = digested;
+        final int visibility = digested ? View.GONE : View.VISIBLE;
+        entry.row.setVisibility(visibility);
+        entry.icon.setVisibility(visibility);
+        if (digested) {
+            if (entry.expanded != null) {
+                unbindContentView(entry);
+            }
+        } else if (mExpandedVisible) {
+            scheduleUpdateBoundRows();
+        } else {
+            scheduleIdleInflation();
+        }
+    }
+
+    private void bindDigestViews(Digest d) {
+        if (d.row == null) {
+            final LayoutInflater inflater =
+                    (LayoutInflater)getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            final View row = inflater.inflate(R.layout.status_bar_latest_event, mLatestItems,
+                    false);
+            final ViewGroup content = (ViewGroup)row.findViewById(R.id.content);
+            content.setDescendantFocusability(ViewGroup.FOCUS_BLOCK_DESCENDANTS);
+            content.setOnFocusChangeListener(mFocusChangeListener);
+            content.setOnClickListener(new DigestOpener(d.pkg));
+            final View summary = inflater.inflate(R.layout.status_bar_digest_event, content,
+                    false);
+            content.addView(summary);
+            if (d.label == null) {
+                d.label = getPackageLabel(d.pkg);
+            }
+            d.row = row;
+            d.image = (ImageView)summary.findViewById(R.id.digest_icon);
+            d.text = (TextView)summary.findViewById(R.id.digest_text);
+            d.icon = new StatusBarIconView(this, d.pkg + "/digest");
+            mLatestItems.addView(row);
+            mNotificationIcons.addView(d.icon, mNotificationIcons.getChildCount());
+        }
+        // the number overlay of the icon carries the count
+        final StatusBarIcon ic = new StatusBarIcon(d.pkg, d.iconId, 0, d.hidden);
+        if (d.icon.set(ic)) {
+            d.image.setImageDrawable(d.icon.getDrawable());
+        }
+        d.text.setText(getString(R.string.status_bar_digest_summary, d.hidden, d.label));
+    }
+
+    private void removeDigestViews(Digest d) {
+        if (d.row == null) {
+            return;
+        }
+        mLatestItems.removeView(d.row);
+        mNotificationIcons.removeView(d.icon);
+        d.row = null;
+        d.image = null;
+        d.text = null;
+        d.icon = null;
+    }
+
+    private CharSequence getPackageLabel(String pkg) {
+        final PackageManager pm = getPackageManager();
+        try {
+            final ApplicationInfo info = pm.getApplicationInfo(pkg, 0);
+            return pm.getApplicationLabel(info);
+        } catch (PackageManager.NameNotFoundException e) {
+            return pkg;
+        }
+    }
+
+    /**
+     * Shows the rows of a digest until the panel closes.
+     */
+    private final class DigestOpener implements View.OnClickListener {
+        private final String mPkg;
+
+        DigestOpener(String pkg) {
+            mPkg = pkg;
+        }
+
+        public void onClick(View v) {
+            mExpandedDigests.add(mPkg);
+            updateDigests();
+            updateExpandedViewPos(EXPANDED_LEAVE_ALONE);
+        }
+    }
+
 
     /**
      * State is one or more of the DISABLE constants from StatusBarManager.
@@ -912,6 +2080,7 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         }
         mExpandedVisible = true;
         visibilityChanged(true);
+        flushProgressUpdates(true);
 
         mPowerWidget.updateWidget();
 
@@ -922,6 +2091,7 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         mExpandedView.requestFocus(View.FOCUS_FORWARD);
         mTrackingView.setVisibility(View.VISIBLE);
         mExpandedView.setVisibility(View.VISIBLE);
+        updateBoundRows();
 
         if (!mTicking) {
             setDateViewVisibility(true, com.android.internal.R.anim.fade_in);
@@ -937,6 +2107,7 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
             return;
         }
 
+        freezePanel();
         prepareTracking(0, true);
         performFling(0, 2000.0f, true);
     }
@@ -967,6 +2138,7 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         // Let the fling think that we're open so it goes in the right direction
         // and doesn't try to re-open the windowshade.
         mExpanded = true;
+        freezePanel();
         prepareTracking(y, false);
         performFling(y, -2000.0f, true);
     }
@@ -998,6 +2170,11 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         }
         mExpandedVisible = false;
         visibilityChanged(false);
+        mDrawingCaches.releaseAll();
+        if (!mExpandedDigests.isEmpty()) {
+            mExpandedDigests.clear();
+            updateDigests();
+        }
         mExpandedParams.flags |= WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE;
         mExpandedParams.flags &= ~WindowManager.LayoutParams.FLAG_ALT_FOCUSABLE_IM;
         mExpandedDialog.getWindow().setAttributes(mExpandedParams);
@@ -1020,6 +2197,7 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
 
     void doAnimation() {
         if (mAnimating) {
+            mFrameStats.frame(SystemClock.uptimeMillis(), mPanelFrozen);
             if (SPEW) Slog.d(TAG, "doAnimation");
             if (SPEW) Slog.d(TAG, "doAnimation before mAnimY=" + mAnimY);
             incrementAnim();
@@ -1029,6 +2207,8 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
                 mAnimating = false;
                 updateExpandedViewPos(EXPANDED_FULL_OPEN);
                 performExpand();
+                mFrameStats.reset();
+                thawPanel();
             }
             else if ((!mBottomBar && mAnimY < mStatusBarView.getHeight())
                     || (mBottomBar && mAnimY > (mDisplay.getHeight()-mStatusBarView.getHeight()))) {
@@ -1039,6 +2219,8 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
                 else
                     updateExpandedViewPos(0);
                 performCollapse();
+                mFrameStats.reset();
+                thawPanel();
             }
             else {
                 updateExpandedViewPos((int)mAnimY);
@@ -1052,6 +2234,7 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         mTracking = false;
         mVelocityTracker.recycle();
         mVelocityTracker = null;
+        thawPanel();
     }
 
     void incrementAnim() {
@@ -1077,10 +2260,13 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
             h = mDisplay.getHeight() - mStatusBarView.getHeight();
         if (mAnimatingReveal && mAnimating &&
                 ((mBottomBar && mAnimY > h) || (!mBottomBar && mAnimY < h))) {
+            mFrameStats.frame(SystemClock.uptimeMillis(), mPanelFrozen);
             incrementAnim();
             if ((mBottomBar && mAnimY <= h) || (!mBottomBar && mAnimY >=h)) {
                 mAnimY = h;
                 updateExpandedViewPos((int)mAnimY);
+                // the finger takes over until the fling
+                mFrameStats.reset();
             } else {
                 updateExpandedViewPos((int)mAnimY);
                 mCurAnimationTime += ANIM_FRAME_DURATION;
@@ -1092,6 +2278,8 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
 
     void prepareTracking(int y, boolean opening) {
         mTracking = true;
+        freezePanel();
+        mFrameStats.reset();
         mVelocityTracker = VelocityTracker.obtain();
         if (opening) {
             mAnimAccel = 2000.0f;
@@ -1173,6 +2361,9 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         mAnimLastTime = now;
         mCurAnimationTime = now + ANIM_FRAME_DURATION;
         mAnimating = true;
+        // held until doAnimation() comes to rest, whoever started the fling
+        freezePanel();
+        mFrameStats.reset();
         mHandler.removeMessages(MSG_ANIMATE);
         mHandler.removeMessages(MSG_ANIMATE_REVEAL);
         mHandler.sendMessageAtTime(mHandler.obtainMessage(MSG_ANIMATE), mCurAnimationTime);
@@ -1380,8 +2571,12 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         if (n.notification.tickerText != null && mStatusBarView.getWindowToken() != null) {
             if (0 == (mDisabled & (StatusBarManager.DISABLE_NOTIFICATION_ICONS
                             | StatusBarManager.DISABLE_NOTIFICATION_TICKER))) {
-                if(!mHasSoftButtons || mStatusBarView.getSoftButtonsWidth() == 0)
+                if(!mHasSoftButtons || mStatusBarView.getSoftButtonsWidth() == 0) {
+                    final long start = System.nanoTime();
                     mTicker.addEntry(n);
+                    mCosts.recordTime(mCosts.slotFor(n.pkg), PackageCostStats.TICKER,
+                            System.nanoTime() - start);
+                }
             }
         }
     }
@@ -1502,6 +2697,45 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
             pw.println("mBottomNotificationLinearLayout: " + viewInfo(mBottomNotificationLinearLayout));
         }
 
+        mCommandQueue.dump(pw);
+        mIconPolicy.dump(pw);
+        final int updates = mFingerprintHits + mFingerprintMisses;
+        pw.println("  notification fingerprints: hits=" + mFingerprintHits
+                + " misses=" + mFingerprintMisses
+                + " hitRate=" + (updates > 0 ? (mFingerprintHits * 100 / updates) + "%" : "-"));
+        mViewWork.dump(pw);
+        IconCache.getInstance(this).dump(pw);
+        NumberBadgeCache.getInstance().dump(pw);
+        StatusIconFrames.getInstance().dump(pw);
+        pw.println("  startup: initialRowsMs=" + mInitialRowsMillis
+                + " backgroundInflation=" + (mPreInflater != null)
+                + " preInflateMs=" + mPreInflateMillis
+                + " preInflateFallbacks=" + mPreInflateFallbacks);
+        pw.println("  recreate: ms=" + mRecreateMillis);
+        pw.println("  digests: rowsPerPackage=" + mDigestLimit + " packages=" + mDigests.size()
+                + " digestedRows=" + mDigestedRows + " opened=" + mExpandedDigests);
+        pw.println("  panel freeze: enabled=" + mFreezePanel + " frozen=" + mPanelFrozen
+                + " pendingAttach=" + mPendingAttach.size() + " thaws=" + mPanelThaws
+                + " timeouts=" + mPanelThawTimeouts);
+        mFrameStats.dump(pw);
+        pw.println("  bulk detaches: batches=" + mBulkDetaches + " views=" + mBulkDetachedViews);
+        pw.println("  clear all: clearing=" + mClearingAll + " remaining=" + mClearAllRemaining
+                + " count=" + mClearAlls + " timeouts=" + mClearAllTimeouts);
+        mRowPool.dump(pw);
+        mContentViewPool.dump(pw);
+        mDrawingCaches.dump(pw);
+        mProgressThrottle.dump(pw);
+        mNotificationRateLimiter.dump(pw, SystemClock.uptimeMillis());
+        String costSort = null;
+        if (args != null) {
+            for (int i=0; i<args.length - 1; i++) {
+                if ("--sort".equals(args[i])) {
+                    costSort = args[i + 1];
+                }
+            }
+        }
+        mCosts.dump(pw, costSort);
+
         if (true) {
             // must happen on ui thread
             mHandler.post(new Runnable() {
@@ -1771,10 +3005,12 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
 
     private View.OnClickListener mClearButtonListener = new View.OnClickListener() {
         public void onClick(View v) {
+            beginClearAll();
             try {
                 mBarService.onClearAllNotifications();
             } catch (RemoteException ex) {
                 // system process is dead if we're here.
+                endClearAll();
             }
             animateCollapse();
         }
@@ -1783,10 +3019,35 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
     private BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
-            if (Intent.ACTION_CLOSE_SYSTEM_DIALOGS.equals(action)
-                    || Intent.ACTION_SCREEN_OFF.equals(action)) {
+            if (Intent.ACTION_CLOSE_SYSTEM_DIALOGS.equals(action)) {
                 animateCollapse();
+            } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+                animateCollapse();
+                setScreenOn(false);
+            } else if (Intent.ACTION_SCREEN_ON.equals(action)) {
+                setScreenOn(true);
             } else if (Intent.ACTION_CONFIGURATION_CHANGED.equals(action)) {
+                final Resources res = getResources();
+                final int changes = mLastConfig.diff(res.getConfiguration());
+                mLastConfig.setTo(res.getConfiguration());
+                final int densityDpi = res.getDisplayMetrics().densityDpi;
+                final boolean densityChanged = densityDpi != mLastDensityDpi;
+                mLastDensityDpi = densityDpi;
+                // Rotating or sliding out the keyboard changes none of the icons or
+                // badges; a new locale, font scale or density may.
+                final boolean textChanged = (changes & (ActivityInfo.CONFIG_LOCALE
+                        | ActivityInfo.CONFIG_FONT_SCALE)) != 0;
+                if (densityChanged || textChanged) {
+                    IconCache.getInstance(context).clear();
+                }
+                if (textChanged) {
+                    // NumberBadgeCache notices a new density by itself
+                    NumberBadgeCache.getInstance().clear();
+                }
+                if (densityChanged) {
+                    // the frames are the same in every locale
+                    mIconPolicy.reloadIconFrames();
+                }
                 updateResources();
             } else if (ACTION_TMOBILE_THEME_CHANGED.equals(action)) {
                 // Normally it will restart on its own, but sometimes it doesn't.  Other times it's slow. 
@@ -1799,57 +3060,114 @@ public class StatusBarService extends Service implements CommandQueue.Callbacks
         }
     };
 
-    private static void copyNotifications(ArrayList<Pair<IBinder, StatusBarNotification>> dest,
-            NotificationData source) {
-        int N = source.size();
-        for (int i = 0; i < N; i++) {
-            NotificationData.Entry entry = source.getEntryAt(i);
-            dest.add(Pair.create(entry.key, entry.notification));
+    private BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        public void onReceive(Context context, Intent intent) {
+            final IconCache cache = IconCache.getInstance(context);
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(intent.getAction())) {
+                final String[] pkgs = intent.getStringArrayExtra(
+                        Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (pkgs != null) {
+                    for (String pkg : pkgs) {
+                        cache.invalidate(pkg);
+                    }
+                }
+            } else if (intent.getData() != null) {
+                final String pkg = intent.getData().getSchemeSpecificPart();
+                cache.invalidate(pkg);
+                if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                        && !intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                    mNotificationRateLimiter.removePackage(pkg);
+                }
+            }
         }
-    }
+    };
 
     private void recreateStatusBar() {
+        final long start = SystemClock.uptimeMillis();
         mStatusBarContainer.removeAllViews();
-
-        // extract icons from the soon-to-be recreated viewgroup.
-        int nIcons = mStatusIcons.getChildCount();
-        ArrayList<StatusBarIcon> icons = new ArrayList<StatusBarIcon>(nIcons);
-        ArrayList<String> iconSlots = new ArrayList<String>(nIcons);
+        // the icons are about to be reloaded for the new theme
+        IconCache.getInstance(this).clear();
+        NumberBadgeCache.getInstance().clear();
+        mIconPolicy.reloadIconFrames();
+
+        // Take the live icon views and rows out of the soon-to-be recreated viewgroups.
+        // Only the chrome around them is inflated again.
+        detachPendingViews();
+        final int nIcons = mStatusIcons.getChildCount();
+        final View[] icons = new View[nIcons];
         for (int i = 0; i < nIcons; i++) {
-            StatusBarIconView iconView = (StatusBarIconView)mStatusIcons.getChildAt(i);
-            icons.add(iconView.getStatusBarIcon());
-            iconSlots.add(iconView.getStatusBarSlot());
+            icons[i] = mStatusIcons.getChildAt(i);
+        }
+        mStatusIcons.removeAllViews();
+        mNotificationIcons.removeAllViews();
+        mOngoingItems.removeAllViews();
+        mLatestItems.removeAllViews();
+        // every row is attached again below
+        mPendingDetach.clear();
+        mRecycleOnDetach.clear();
+        mPendingAttach.clear();
+        // the digested entries keep their state; only the summary views are made again
+        mDigests.clear();
+        mRowPool.clear();
+        mDrawingCaches.releaseAll();
+        if (mPreInflating) {
+            // The views would be for the old theme; bind the rows on the main thread.
+            mPreInflater.quit();
+            mPreInflating = false;
+            scheduleIdleInflation();
         }
 
-        // extract notifications.
-        int nNotifs = mOngoing.size() + mLatest.size();
-        ArrayList<Pair<IBinder, StatusBarNotification>> notifications =
-                new ArrayList<Pair<IBinder, StatusBarNotification>>(nNotifs);
-        copyNotifications(notifications, mOngoing);
-        copyNotifications(notifications, mLatest);
-        mOngoing.clear();
-        mLatest.clear();
-
         makeStatusBarView(this);
 
-        // recreate StatusBarIconViews.
+        // Move the status icons over, with drawables for the new theme.
         for (int i = 0; i < nIcons; i++) {
-            StatusBarIcon icon = icons.get(i);
-            String slot = iconSlots.get(i);
-            addIcon(slot, i, i, icon);
+            final StatusBarIconView iconView = (StatusBarIconView)icons[i];
+            iconView.reloadDrawables();
+            mStatusIcons.addView(iconView, i, new LinearLayout.LayoutParams(mIconSize, mIconSize));
         }
 
-        // recreate notifications.
-        for (int i = 0; i < nNotifs; i++) {
-            Pair<IBinder, StatusBarNotification> notifData = notifications.get(i);
-            addNotificationViews(notifData.first, notifData.second);
-        }
+        // Move the rows over in list order, and the notification icons in the order
+        // chooseIconIndex() puts them in: latest then ongoing, newest first.
+        moveRows(mOngoing, mOngoingItems);
+        moveRows(mLatest, mLatestItems);
+        moveNotificationIcons(mLatest);
+        moveNotificationIcons(mOngoing);
+        updateDigests();
 
         setAreThereNotifications();
         mStatusBarContainer.addView(mStatusBarView);
         updateExpandedViewPos(EXPANDED_LEAVE_ALONE);
 
         mPowerWidget.setupWidget();
+
+        mRecreateMillis = SystemClock.uptimeMillis() - start;
+        Slog.i(TAG, "Recreated status bar with " + nIcons + " icons and "
+                + (mOngoing.size() + mLatest.size()) + " notifications in "
+                + mRecreateMillis + "ms");
+    }
+
+    private void moveRows(NotificationData list, ViewGroup parent) {
+        final Resources res = getResources();
+        final int N = list.size();
+        for (int i=0; i<N; i++) {
+            final NotificationData.Entry entry = list.getEntryAt(i);
+            final LatestItemContainer row = (LatestItemContainer)entry.row;
+            // the backgrounds from R.layout.status_bar_latest_event
+            entry.content.setBackgroundDrawable(
+                    res.getDrawable(android.R.drawable.status_bar_item_background));
+            row.getChildAt(1).setBackgroundDrawable(
+                    res.getDrawable(R.drawable.divider_horizontal_light_opaque));
+            row.updateDispatcher(mTouchDispatcher);
+            parent.addView(row, i);
+        }
+    }
+
+    private void moveNotificationIcons(NotificationData list) {
+        for (int i=list.size()-1; i>=0; i--) {
+            final StatusBarIconView iconView = list.getEntryAt(i).icon;
+            iconView.reloadDrawables();
+            mNotificationIcons.addView(iconView, mNotificationIcons.getChildCount());
+        }
     }
 
     /**
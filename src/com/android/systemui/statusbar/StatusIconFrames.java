@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.util.Slog;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The constant states of every frame of the status icons that switch the
+ * most (signal, data, wifi and wimax), loaded once on the background thread
+ * and held on to.  A lookup makes a new drawable on the state Resources
+ * decoded, so switching frames neither decodes nor looks anything up, and
+ * the bitmaps are the ones Resources has anyway: nothing is copied.  What
+ * it costs is that those bitmaps stay in memory for as long as the status
+ * bar runs, instead of only while a frame is shown (see "bytes" in the
+ * dump).  Until they're loaded, and for any other icon, lookups come back
+ * empty and the icon is loaded as usual.  Must be reloaded after a theme or
+ * density change.
+ */
+final class StatusIconFrames {
+    private static final String TAG = "StatusIconFrames";
+
+    /**
+     * One loaded set; never changed once published.
+     */
+    private static final class Frames {
+        final String pkg;
+        final int[] ids; // sorted
+        final Drawable.ConstantState[] states; // states[i] is the state of ids[i]
+        final int bytes;
+
+        Frames(String pkg, int[] ids, Drawable.ConstantState[] states, int bytes) {
+            this.pkg = pkg;
+            this.ids = ids;
+            this.states = states;
+            this.bytes = bytes;
+        }
+    }
+
+    private static StatusIconFrames sInstance;
+
+    private volatile Frames mFrames;
+    // bumped by clear(), so a load that started before it is thrown away
+    private int mGeneration;
+    private int mSkipped;
+    private long mLoadMillis;
+    private final AtomicInteger mHits = new AtomicInteger();
+
+    static synchronized StatusIconFrames getInstance() {
+        if (sInstance == null) {
+            sInstance = new StatusIconFrames();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Load the given drawables of context's package on the {@link BackgroundThread}.
+     * Frames without a constant state are left out.
+     */
+    void load(Context context, int[] iconIds) {
+        final Resources res = context.getResources();
+        final String pkg = context.getPackageName();
+        final int[] ids = iconIds.clone();
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        BackgroundThread.getHandler().post(new Runnable() {
+            public void run() {
+                final long start = SystemClock.uptimeMillis();
+                final Frames frames = loadFrames(res, pkg, ids);
+                final long elapsed = SystemClock.uptimeMillis() - start;
+                synchronized (StatusIconFrames.this) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    mFrames = frames;
+                    mLoadMillis = elapsed;
+                }
+                Slog.i(TAG, "Loaded " + frames.ids.length + " status icon frames ("
+                        + frames.bytes + " bytes) in " + elapsed + "ms");
+            }
+        });
+    }
+
+    private Frames loadFrames(Resources res, String pkg, int[] ids) {
+        Arrays.sort(ids);
+        // drop duplicates and frames that can't be shared
+        final Drawable.ConstantState[] states = new Drawable.ConstantState[ids.length];
+        int n = 0;
+        int skipped = 0;
+        int bytes = 0;
+        for (int i=0; i<ids.length; i++) {
+            if (n > 0 && ids[n - 1] == ids[i]) {
+                continue;
+            }
+            Drawable d = null;
+            try {
+                d = res.getDrawable(ids[i]);
+            } catch (RuntimeException e) {
+                Slog.w(TAG, "Couldn't load status icon 0x" + Integer.toHexString(ids[i]), e);
+            }
+            final Drawable.ConstantState state = d != null ? d.getConstantState() : null;
+            if (state == null) {
+                skipped++;
+                continue;
+            }
+            if (d instanceof BitmapDrawable) {
+                final Bitmap b = ((BitmapDrawable)d).getBitmap();
+                if (b != null) {
+                    bytes += b.getRowBytes() * b.getHeight();
+                }
+            }
+            ids[n] = ids[i];
+            states[n] = state;
+            n++;
+        }
+
+        synchronized (this) {
+            mSkipped = skipped;
+        }
+        final int[] loadedIds = new int[n];
+        final Drawable.ConstantState[] loadedStates = new Drawable.ConstantState[n];
+        System.arraycopy(ids, 0, loadedIds, 0, n);
+        System.arraycopy(states, 0, loadedStates, 0, n);
+        return new Frames(pkg, loadedIds, loadedStates, bytes);
+    }
+
+    /**
+     * Returns a new drawable for the icon sharing the loaded frame, or null if
+     * it isn't loaded.
+     */
+    Drawable getDrawable(String pkg, int iconId) {
+        final Frames frames = mFrames;
+        if (frames == null || pkg == null || !pkg.equals(frames.pkg)) {
+            return null;
+        }
+        final int index = Arrays.binarySearch(frames.ids, iconId);
+        if (index < 0) {
+            return null;
+        }
+        mHits.incrementAndGet();
+        return frames.states[index].newDrawable();
+    }
+
+    /**
+     * Drop the frames, after a theme or density change.
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mFrames = null;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        final Frames frames = mFrames;
+        if (frames == null) {
+            pw.println("  StatusIconFrames: not loaded");
+            return;
+        }
+        pw.println("  StatusIconFrames: frames=" + frames.ids.length + " skipped=" + mSkipped
+                + " bytes=" + frames.bytes + " loadMs=" + mLoadMillis + " hits=" + mHits.get());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Runs view construction work on the main thread in time slices.  Items are
+ * taken in priority order (and in order of arrival within a priority) until
+ * the per-frame budget is used up, then the rest waits for the next frame
+ * tick so that input and drawing get a turn in between.
+ */
+final class ViewWorkScheduler {
+    static final int PRIORITY_ICON = 0;
+    static final int PRIORITY_VISIBLE_ROW = 1;
+    static final int PRIORITY_OFFSCREEN_ROW = 2;
+    private static final int PRIORITY_COUNT = 3;
+    private static final String[] PRIORITY_NAMES = { "icon", "visibleRow", "offscreenRow" };
+
+    // upper bounds of the cost histogram buckets, in microseconds; the last
+    // bucket takes everything above
+    private static final int[] BUCKET_LIMITS_US = { 500, 1000, 2000, 4000, 8000, 16000 };
+
+    private final Handler mHandler = new Handler();
+    private final long mBudgetNanos;
+    private final long mFrameMillis;
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Runnable>[] mQueues = new ArrayDeque[PRIORITY_COUNT];
+    private boolean mSlicePosted;
+
+    private final int[][] mHistogram = new int[PRIORITY_COUNT][BUCKET_LIMITS_US.length + 1];
+    private final long[] mTotalNanos = new long[PRIORITY_COUNT];
+    private int mMaxDepth;
+    private int mSlices;
+
+    ViewWorkScheduler(int budgetMillis, int frameMillis) {
+        mBudgetNanos = budgetMillis * 1000000L;
+        mFrameMillis = frameMillis;
+        for (int i=0; i<PRIORITY_COUNT; i++) {
+            mQueues[i] = new ArrayDeque<Runnable>();
+        }
+    }
+
+    void enqueue(int priority, Runnable work) {
+        mQueues[priority].add(work);
+        final int depth = size();
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+        scheduleSlice();
+    }
+
+    int size() {
+        int size = 0;
+        for (int i=0; i<PRIORITY_COUNT; i++) {
+            size += mQueues[i].size();
+        }
+        return size;
+    }
+
+    private void scheduleSlice() {
+        if (mSlicePosted) {
+            return;
+        }
+        mSlicePosted = true;
+        final long now = SystemClock.uptimeMillis();
+        mHandler.postAtTime(mRunSlice, now - (now % mFrameMillis) + mFrameMillis);
+    }
+
+    private final Runnable mRunSlice = new Runnable() {
+        public void run() {
+            mSlicePosted = false;
+            mSlices++;
+            final long start = System.nanoTime();
+            long now = start;
+            try {
+                do {
+                    final int priority = nextPriority();
+                    if (priority < 0) {
+                        return;
+                    }
+                    final Runnable work = mQueues[priority].poll();
+                    try {
+                        work.run();
+                    } finally {
+                        final long end = System.nanoTime();
+                        record(priority, end - now);
+                        now = end;
+                    }
+                } while (now - start < mBudgetNanos);
+            } finally {
+                // Even if an item threw, the rest of the queue gets its turn.
+                if (size() > 0) {
+                    scheduleSlice();
+                }
+            }
+        }
+    };
+
+    private int nextPriority() {
+        for (int i=0; i<PRIORITY_COUNT; i++) {
+            if (!mQueues[i].isEmpty()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void record(int priority, long nanos) {
+        mTotalNanos[priority] += nanos;
+        final long us = nanos / 1000;
+        final int[] histogram = mHistogram[priority];
+        for (int i=0; i<BUCKET_LIMITS_US.length; i++) {
+            if (us < BUCKET_LIMITS_US[i]) {
+                histogram[i]++;
+                return;
+            }
+        }
+        histogram[BUCKET_LIMITS_US.length]++;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  ViewWorkScheduler: queued=" + size() + " maxQueued=" + mMaxDepth
+                + " slices=" + mSlices + " budgetMs=" + (mBudgetNanos / 1000000));
+        for (int p=0; p<PRIORITY_COUNT; p++) {
+            final int[] histogram = mHistogram[p];
+            final StringBuilder sb = new StringBuilder();
+            sb.append("    ").append(PRIORITY_NAMES[p]).append(": queued=")
+                    .append(mQueues[p].size()).append(" totalMs=")
+                    .append(mTotalNanos[p] / 1000000).append(" costUs");
+            for (int i=0; i<histogram.length; i++) {
+                sb.append(i < BUCKET_LIMITS_US.length ? " <" + BUCKET_LIMITS_US[i]
+                        : " >=" + BUCKET_LIMITS_US[BUCKET_LIMITS_US.length - 1])
+                        .append('=').append(histogram[i]);
+            }
+            pw.println(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,15 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_JAVA_LIBRARIES := android.test.runner
+
+LOCAL_PACKAGE_NAME := SystemUIBenchmarks
+LOCAL_CERTIFICATE := platform
+
+LOCAL_INSTRUMENTATION_FOR := SystemUI
+
+include $(BUILD_PACKAGE)
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Time to clear 500 notification rows from a panel: one row removed and the
+ * panel laid out again per removal, as when every removal of a clear all
+ * lands in a batch of its own, against the rows hidden as they are removed
+ * and detached in runs with one layout at the end, as
+ * StatusBarService.beginClearAll() and detachPendingViews() do.
+ */
+public class ClearAllBenchmark extends AndroidTestCase {
+    private static final int ROWS = 500;
+    private static final int ROUNDS = 5;
+    private static final int WIDTH = 480;
+
+    public void testClearAll() {
+        // warm up both before timing either
+        clearOneByOne(makePanel(), removeOrder());
+        clearTogether(makePanel(), removeOrder());
+
+        long oneByOne = 0;
+        long together = 0;
+        for (int r=0; r<ROUNDS; r++) {
+            oneByOne += clearOneByOne(makePanel(), removeOrder());
+            together += clearTogether(makePanel(), removeOrder());
+        }
+        System.out.println("ClearAllBenchmark rows=" + ROWS
+                + " oneByOneMs=" + (oneByOne / ROUNDS)
+                + " togetherMs=" + (together / ROUNDS));
+    }
+
+    private LinearLayout makePanel() {
+        final LinearLayout panel = new LinearLayout(getContext());
+        panel.setOrientation(LinearLayout.VERTICAL);
+        for (int i=0; i<ROWS; i++) {
+            final LinearLayout row = new LinearLayout(getContext());
+            row.addView(new ImageView(getContext()), new LinearLayout.LayoutParams(48, 48));
+            final TextView text = new TextView(getContext());
+            text.setText("Notification " + i);
+            row.addView(text, new LinearLayout.LayoutParams(0,
+                    ViewGroup.LayoutParams.WRAP_CONTENT, 1));
+            panel.addView(row, new LinearLayout.LayoutParams(
+                    ViewGroup.LayoutParams.FILL_PARENT, 64));
+        }
+        layout(panel);
+        return panel;
+    }
+
+    private static int[] removeOrder() {
+        final Random random = new Random(ROWS);
+        final int[] order = new int[ROWS];
+        for (int i=0; i<ROWS; i++) {
+            order[i] = i;
+        }
+        for (int i=ROWS-1; i>0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        return order;
+    }
+
+    private static void layout(ViewGroup panel) {
+        panel.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
+        panel.layout(0, 0, WIDTH, panel.getMeasuredHeight());
+    }
+
+    private static View[] rows(ViewGroup panel) {
+        final View[] rows = new View[panel.getChildCount()];
+        for (int i=0; i<rows.length; i++) {
+            rows[i] = panel.getChildAt(i);
+        }
+        return rows;
+    }
+
+    private static long clearOneByOne(ViewGroup panel, int[] order) {
+        final View[] rows = rows(panel);
+        final long start = SystemClock.uptimeMillis();
+        for (int i=0; i<order.length; i++) {
+            panel.removeView(rows[order[i]]);
+            layout(panel);
+        }
+        final long time = SystemClock.uptimeMillis() - start;
+        assertEquals(0, panel.getChildCount());
+        return time;
+    }
+
+    private static long clearTogether(ViewGroup panel, int[] order) {
+        final View[] rows = rows(panel);
+        final HashSet<View> pending = new HashSet<View>();
+        final long start = SystemClock.uptimeMillis();
+        for (int i=0; i<order.length; i++) {
+            final View row = rows[order[i]];
+            row.setVisibility(View.INVISIBLE);
+            pending.add(row);
+        }
+        int end = panel.getChildCount();
+        while (end > 0) {
+            if (!pending.contains(panel.getChildAt(end - 1))) {
+                end--;
+                continue;
+            }
+            int first = end - 1;
+            while (first > 0 && pending.contains(panel.getChildAt(first - 1))) {
+                first--;
+            }
+            panel.removeViewsInLayout(first, end - first);
+            end = first;
+        }
+        layout(panel);
+        final long time = SystemClock.uptimeMillis() - start;
+        assertEquals(0, panel.getChildCount());
+        return time;
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.app.Notification;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.Message;
+import android.os.Parcel;
+
+import com.android.internal.statusbar.IStatusBar;
+import com.android.internal.statusbar.StatusBarIcon;
+import com.android.internal.statusbar.StatusBarIconList;
+import com.android.internal.statusbar.StatusBarNotification;
+
+import junit.framework.TestCase;
+
+import java.io.FileDescriptor;
+import java.util.Arrays;
+
+/**
+ * Throughput and binder-thread latency of CommandQueue's ingress with 1 to 8
+ * producer threads standing in for binder threads: the real CommandQueue,
+ * delivering to its Callbacks on a looper thread, against the ingress it
+ * started from, which took the monitor on mList and sent one Handler message
+ * per call.  Every run also checks that each producer's notifications come
+ * out complete and in order.
+ */
+public class CommandQueueBenchmark extends TestCase {
+    private static final int COMMANDS_PER_PRODUCER = 50000;
+    private static final int WARMUP_COMMANDS = 5000;
+    // every SAMPLE_EVERY-th call is timed
+    private static final int SAMPLE_EVERY = 8;
+
+    /**
+     * A notification key that knows who posted it.  Not a Binder, so that
+     * making hundreds of thousands of them stays cheap.
+     */
+    static final class Key implements IBinder {
+        final int producer;
+        final int seq;
+
+        Key(int producer, int seq) {
+            this.producer = producer;
+            this.seq = seq;
+        }
+
+        public String getInterfaceDescriptor() {
+            return null;
+        }
+
+        public boolean pingBinder() {
+            return true;
+        }
+
+        public boolean isBinderAlive() {
+            return true;
+        }
+
+        public IInterface queryLocalInterface(String descriptor) {
+            return null;
+        }
+
+        public void dump(FileDescriptor fd, String[] args) {
+        }
+
+        public boolean transact(int code, Parcel data, Parcel reply, int flags) {
+            return false;
+        }
+
+        public void linkToDeath(DeathRecipient recipient, int flags) {
+        }
+
+        public boolean unlinkToDeath(DeathRecipient recipient, int flags) {
+            return true;
+        }
+    }
+
+    /**
+     * Counts what the looper thread is handed, and checks the order.
+     */
+    static final class Sink {
+        private final int[] mNext;
+        private final int mTotal;
+        private int mCount;
+        private AssertionError mFailure;
+
+        Sink(int producers, int total) {
+            mNext = new int[producers];
+            mTotal = total;
+        }
+
+        void onAdd(IBinder key) {
+            final Key k = (Key)key;
+            if (mFailure == null && k.seq != mNext[k.producer]) {
+                mFailure = new AssertionError("producer " + k.producer + " expected "
+                        + mNext[k.producer] + " got " + k.seq);
+            }
+            mNext[k.producer] = k.seq + 1;
+            synchronized (this) {
+                if (++mCount == mTotal) {
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized void await() throws InterruptedException {
+            while (mCount < mTotal) {
+                wait();
+            }
+            if (mFailure != null) {
+                throw mFailure;
+            }
+        }
+    }
+
+    /**
+     * The ingress CommandQueue started from, cut down to notification adds:
+     * every call takes the monitor on mList and sends a message to the main
+     * thread from under it.
+     */
+    static final class LegacyQueue {
+        private static final int MSG_ADD_NOTIFICATION = 0x00020000;
+
+        private final StatusBarIconList mList = new StatusBarIconList();
+        private final Handler mHandler;
+        private final Sink mSink;
+
+        private static final class NotificationQueueEntry {
+            IBinder key;
+            StatusBarNotification notification;
+        }
+
+        LegacyQueue(HandlerThread thread, Sink sink) {
+            mSink = sink;
+            mHandler = new Handler(thread.getLooper()) {
+                public void handleMessage(Message msg) {
+                    if (msg.what == MSG_ADD_NOTIFICATION) {
+                        mSink.onAdd(((NotificationQueueEntry)msg.obj).key);
+                    }
+                }
+            };
+        }
+
+        public void addNotification(IBinder key, StatusBarNotification notification) {
+            synchronized (mList) {
+                NotificationQueueEntry ne = new NotificationQueueEntry();
+                ne.key = key;
+                ne.notification = notification;
+                mHandler.obtainMessage(MSG_ADD_NOTIFICATION, 0, 0, ne).sendToTarget();
+            }
+        }
+    }
+
+    /**
+     * Hands what CommandQueue delivers to a Sink.
+     */
+    static final class SinkCallbacks implements CommandQueue.Callbacks {
+        private final Sink mSink;
+
+        SinkCallbacks(Sink sink) {
+            mSink = sink;
+        }
+
+        public void addIcon(String slot, int index, int viewIndex, StatusBarIcon icon) {
+        }
+
+        public void updateIcon(String slot, int index, int viewIndex,
+                StatusBarIcon old, StatusBarIcon icon) {
+        }
+
+        public void removeIcon(String slot, int index, int viewIndex) {
+        }
+
+        public void addNotification(IBinder key, StatusBarNotification notification,
+                long fingerprint, boolean quiet) {
+            mSink.onAdd(key);
+        }
+
+        public void updateNotification(IBinder key, StatusBarNotification notification,
+                long fingerprint, boolean quiet) {
+        }
+
+        public void removeNotification(IBinder key) {
+        }
+
+        public void sendFullScreenIntent(StatusBarNotification notification) {
+        }
+
+        public void disable(int state) {
+        }
+
+        public void animateExpand() {
+        }
+
+        public void animateCollapse() {
+        }
+
+        public void beginBatch() {
+        }
+
+        public void endBatch() {
+        }
+    }
+
+    interface Poster {
+        void post(IBinder key, StatusBarNotification notification) throws Exception;
+    }
+
+    static final class Result {
+        // until the last producer returned
+        long postNanos;
+        // until the looper thread had seen everything
+        long elapsedNanos;
+        long[] latencies;
+    }
+
+    public void testIngress() throws Exception {
+        // warm up both before timing either
+        run(false, 4, WARMUP_COMMANDS);
+        run(true, 4, WARMUP_COMMANDS);
+
+        for (int producers=1; producers<=8; producers*=2) {
+            report(false, producers);
+            report(true, producers);
+        }
+    }
+
+    private void report(boolean legacy, int producers) throws Exception {
+        final Result r = run(legacy, producers, COMMANDS_PER_PRODUCER);
+        final long[] l = r.latencies;
+        Arrays.sort(l);
+        final long commands = (long)producers * COMMANDS_PER_PRODUCER;
+        System.out.println("CommandQueueBenchmark " + (legacy ? "legacy" : "commandQueue")
+                + " producers=" + producers
+                + " postOpsPerMs=" + (commands * 1000000 / r.postNanos)
+                + " deliveredOpsPerMs=" + (commands * 1000000 / r.elapsedNanos)
+                + " p50Ns=" + l[l.length / 2]
+                + " p99Ns=" + l[(int)(l.length * 0.99)]
+                + " p999Ns=" + l[(int)(l.length * 0.999)]
+                + " maxNs=" + l[l.length - 1]);
+    }
+
+    private Result run(boolean legacy, final int producers, final int perProducer)
+            throws Exception {
+        final Sink sink = new Sink(producers, producers * perProducer);
+        final HandlerThread looper = new HandlerThread("CommandQueueBenchmark");
+        looper.start();
+        final Poster poster;
+        if (legacy) {
+            final LegacyQueue queue = new LegacyQueue(looper, sink);
+            poster = new Poster() {
+                public void post(IBinder key, StatusBarNotification notification) {
+                    queue.addNotification(key, notification);
+                }
+            };
+        } else {
+            final IStatusBar queue = createQueue(looper, sink);
+            poster = new Poster() {
+                public void post(IBinder key, StatusBarNotification notification)
+                        throws Exception {
+                    queue.addNotification(key, notification);
+                }
+            };
+        }
+
+        // everything a binder call would have unparceled already
+        final Key[][] keys = new Key[producers][perProducer];
+        final StatusBarNotification[] notifications = new StatusBarNotification[producers];
+        for (int p=0; p<producers; p++) {
+            for (int seq=0; seq<perProducer; seq++) {
+                keys[p][seq] = new Key(p, seq);
+            }
+            notifications[p] = new StatusBarNotification("com.android.systemui.tests", p, null,
+                    0, 0, new Notification());
+        }
+
+        final int samplesPerProducer = perProducer / SAMPLE_EVERY;
+        final long[] latencies = new long[producers * samplesPerProducer];
+        final Throwable[] failure = new Throwable[1];
+        final Thread[] threads = new Thread[producers];
+        for (int p=0; p<producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread("producer" + p) {
+                public void run() {
+                    int sample = producer * samplesPerProducer;
+                    final Key[] k = keys[producer];
+                    final StatusBarNotification n = notifications[producer];
+                    try {
+                        for (int seq=0; seq<perProducer; seq++) {
+                            if (seq % SAMPLE_EVERY == 0) {
+                                final long start = System.nanoTime();
+                                poster.post(k[seq], n);
+                                latencies[sample++] = System.nanoTime() - start;
+                            } else {
+                                poster.post(k[seq], n);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            };
+        }
+
+        final long start = System.nanoTime();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        final long posted = System.nanoTime();
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+        sink.await();
+        final Result r = new Result();
+        r.postNanos = posted - start;
+        r.elapsedNanos = System.nanoTime() - start;
+        r.latencies = latencies;
+        looper.quit();
+        return r;
+    }
+
+    /**
+     * CommandQueue binds its Handler to the looper of the thread that makes
+     * it, so make it on the looper thread.
+     */
+    private static IStatusBar createQueue(HandlerThread looper, Sink sink) throws Exception {
+        final CommandQueue[] queue = new CommandQueue[1];
+        new Handler(looper.getLooper()).post(new Runnable() {
+            public void run() {
+                synchronized (queue) {
+                    queue[0] = new CommandQueue(new SinkCallbacks(sink), new StatusBarIconList(),
+                            null);
+                    queue.notifyAll();
+                }
+            }
+        });
+        synchronized (queue) {
+            while (queue[0] == null) {
+                queue.wait();
+            }
+        }
+        return queue[0];
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Time per layout with 5, 50 and 500 icons when one icon changes between
+ * layouts: the old linear scan over every icon, against {@link IconOverflow}
+ * updated from the changed icon on.  Plain Java, so it runs on a device and
+ * in a JVM alike.
+ */
+public class IconOverflowBenchmark extends TestCase {
+    private static final int LAYOUTS = 200000;
+    private static final int WARMUP_LAYOUTS = 20000;
+
+    // keeps the results live so the loops are not optimized away
+    private long mSink;
+
+    public void testLayout() {
+        // warm up both before timing either
+        for (int icons=5; icons<=500; icons*=10) {
+            runScan(icons, WARMUP_LAYOUTS);
+            runOverflow(icons, WARMUP_LAYOUTS);
+        }
+        for (int icons=5; icons<=500; icons*=10) {
+            final long scan = runScan(icons, LAYOUTS);
+            final long overflow = runOverflow(icons, LAYOUTS);
+            System.out.println("IconOverflowBenchmark icons=" + icons
+                    + " scanNsPerLayout=" + (scan / LAYOUTS)
+                    + " overflowNsPerLayout=" + (overflow / LAYOUTS));
+        }
+        assertTrue(mSink != 0);
+    }
+
+    private static int[] widths(int icons) {
+        final Random random = new Random(icons);
+        final int[] widths = new int[icons + 1];
+        for (int i=1; i<=icons; i++) {
+            widths[i] = 20 + random.nextInt(10);
+        }
+        return widths;
+    }
+
+    private long runScan(int icons, int layouts) {
+        final int[] widths = widths(icons);
+        final boolean[] visible = new boolean[icons + 1];
+        Arrays.fill(visible, true);
+        final Random random = new Random(1);
+        long sink = 0;
+        final long start = System.nanoTime();
+        for (int n=0; n<layouts; n++) {
+            final int changed = 1 + random.nextInt(icons);
+            visible[changed] = !visible[changed];
+            int total = 0;
+            for (int i=1; i<=icons; i++) {
+                if (visible[i]) {
+                    total += widths[i];
+                }
+            }
+            final int extra = total / 2;
+            int left = 0;
+            int number = 0;
+            int shift = -1;
+            for (int i=1; i<=icons; i++) {
+                if (!visible[i]) {
+                    continue;
+                }
+                if (left < extra) {
+                    number++;
+                } else if (shift < 0) {
+                    shift = left;
+                }
+                left += widths[i];
+            }
+            sink += number + shift;
+        }
+        final long elapsed = System.nanoTime() - start;
+        mSink += sink;
+        return elapsed;
+    }
+
+    private long runOverflow(int icons, int layouts) {
+        final int[] widths = widths(icons);
+        final boolean[] visible = new boolean[icons + 1];
+        Arrays.fill(visible, true);
+        final IconOverflow overflow = new IconOverflow();
+        overflow.setSize(icons + 1);
+        for (int i=1; i<=icons; i++) {
+            overflow.set(i, widths[i], 1);
+        }
+        final Random random = new Random(1);
+        long sink = 0;
+        final long start = System.nanoTime();
+        for (int n=0; n<layouts; n++) {
+            final int changed = 1 + random.nextInt(icons);
+            visible[changed] = !visible[changed];
+            overflow.set(changed, visible[changed] ? widths[changed] : 0,
+                    visible[changed] ? 1 : 0);
+            final int extra = overflow.widthBefore(icons + 1) / 2;
+            final int firstShown = overflow.firstFitting(1, extra);
+            sink += overflow.countBefore(firstShown) + overflow.widthBefore(firstShown);
+        }
+        final long elapsed = System.nanoTime() - start;
+        mSink += sink;
+        return elapsed;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.app.Notification;
+import android.os.Binder;
+import android.os.IBinder;
+
+import com.android.internal.statusbar.StatusBarNotification;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Time per add, update and remove with 100, 1000 and 10000 notifications:
+ * {@link NotificationData} against the list it started from, which found
+ * entries and insertion points by scanning.  An update is what
+ * StatusBarService.updateNotification() does to the data: look the key up,
+ * then replace the notification.
+ */
+public class NotificationDataBenchmark extends TestCase {
+    private static final int WARMUP_ROUNDS = 3;
+    // roughly the same number of operations at every size
+    private static final int OPERATIONS = 200000;
+
+    // keeps the results live so the loops are not optimized away
+    private long mSink;
+
+    /**
+     * The ordered list NotificationData used to be, trimmed to what the
+     * benchmark calls.
+     */
+    static final class LinearNotificationData {
+        private final ArrayList<NotificationData.Entry> mEntries =
+                new ArrayList<NotificationData.Entry>();
+
+        public int findEntry(IBinder key) {
+            final int N = mEntries.size();
+            for (int i=0; i<N; i++) {
+                NotificationData.Entry entry = mEntries.get(i);
+                if (entry.key == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public NotificationData.Entry getEntryAt(int index) {
+            return mEntries.get(index);
+        }
+
+        public int add(IBinder key, StatusBarNotification notification) {
+            NotificationData.Entry entry = new NotificationData.Entry();
+            entry.key = key;
+            entry.notification = notification;
+            final int index = chooseIndex(notification.notification.when);
+            mEntries.add(index, entry);
+            return index;
+        }
+
+        public NotificationData.Entry remove(IBinder key) {
+            final int N = mEntries.size();
+            for (int i=0; i<N; i++) {
+                NotificationData.Entry entry = mEntries.get(i);
+                if (entry.key == key) {
+                    mEntries.remove(i);
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        private int chooseIndex(final long when) {
+            final int N = mEntries.size();
+            for (int i=0; i<N; i++) {
+                NotificationData.Entry entry = mEntries.get(i);
+                if (entry.notification.notification.when > when) {
+                    return i;
+                }
+            }
+            return N;
+        }
+    }
+
+    /**
+     * The keys and notifications of one run, in the order they are added,
+     * updated and removed.
+     */
+    static final class Workload {
+        final IBinder[] keys;
+        final StatusBarNotification[] notifications;
+        final StatusBarNotification[] updates;
+        final int[] updateOrder;
+        final int[] removeOrder;
+
+        Workload(int size) {
+            final Random random = new Random(size);
+            keys = new IBinder[size];
+            notifications = new StatusBarNotification[size];
+            updates = new StatusBarNotification[size];
+            for (int i=0; i<size; i++) {
+                keys[i] = new Binder();
+                // mostly posted in order, with some out of order and some ties
+                final long when = i - random.nextInt(size / 10 + 1);
+                notifications[i] = notification(when);
+                updates[i] = notification(when);
+            }
+            updateOrder = shuffle(random, size);
+            removeOrder = shuffle(random, size);
+        }
+
+        private static int[] shuffle(Random random, int size) {
+            final int[] order = new int[size];
+            for (int i=0; i<size; i++) {
+                order[i] = i;
+            }
+            for (int i=size-1; i>0; i--) {
+                final int j = random.nextInt(i + 1);
+                final int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+            }
+            return order;
+        }
+
+        private static StatusBarNotification notification(long when) {
+            final Notification n = new Notification();
+            n.when = when;
+            return new StatusBarNotification("com.android.systemui.benchmarks", 0, null, 0, 0, n);
+        }
+    }
+
+    public void testAddUpdateRemove() {
+        for (int size=100; size<=10000; size*=10) {
+            final Workload workload = new Workload(size);
+            final int rounds = Math.max(1, OPERATIONS / size);
+            for (int r=0; r<WARMUP_ROUNDS; r++) {
+                runLinear(workload, null);
+                runIndexed(workload, null);
+            }
+            final long[] linear = new long[3];
+            final long[] indexed = new long[3];
+            for (int r=0; r<rounds; r++) {
+                runLinear(workload, linear);
+                runIndexed(workload, indexed);
+            }
+            final long ops = (long) size * rounds;
+            System.out.println("NotificationDataBenchmark size=" + size
+                    + " scanAddNs=" + (linear[0] / ops)
+                    + " indexedAddNs=" + (indexed[0] / ops)
+                    + " scanUpdateNs=" + (linear[1] / ops)
+                    + " indexedUpdateNs=" + (indexed[1] / ops)
+                    + " scanRemoveNs=" + (linear[2] / ops)
+                    + " indexedRemoveNs=" + (indexed[2] / ops));
+        }
+        assertTrue(mSink != 0);
+    }
+
+    private void runLinear(Workload w, long[] times) {
+        final LinearNotificationData data = new LinearNotificationData();
+        final int N = w.keys.length;
+        long sink = 0;
+
+        long start = System.nanoTime();
+        for (int i=0; i<N; i++) {
+            sink += data.add(w.keys[i], w.notifications[i]);
+        }
+        final long added = System.nanoTime();
+        for (int i=0; i<N; i++) {
+            final int k = w.updateOrder[i];
+            final int index = data.findEntry(w.keys[k]);
+            data.getEntryAt(index).notification = w.updates[k];
+            sink += index;
+        }
+        final long updated = System.nanoTime();
+        for (int i=0; i<N; i++) {
+            sink += data.remove(w.keys[w.removeOrder[i]]).notification.notification.when;
+        }
+        final long removed = System.nanoTime();
+
+        record(times, start, added, updated, removed);
+        mSink += sink;
+    }
+
+    private void runIndexed(Workload w, long[] times) {
+        final NotificationData data = new NotificationData();
+        final int N = w.keys.length;
+        long sink = 0;
+
+        long start = System.nanoTime();
+        for (int i=0; i<N; i++) {
+            sink += data.add(w.keys[i], w.notifications[i], null, null, null, null);
+        }
+        final long added = System.nanoTime();
+        for (int i=0; i<N; i++) {
+            final int k = w.updateOrder[i];
+            final NotificationData.Entry entry = data.getEntry(w.keys[k]);
+            data.setNotification(entry, w.updates[k]);
+            sink += entry.when;
+        }
+        final long updated = System.nanoTime();
+        for (int i=0; i<N; i++) {
+            sink += data.remove(w.keys[w.removeOrder[i]]).notification.notification.when;
+        }
+        final long removed = System.nanoTime();
+
+        record(times, start, added, updated, removed);
+        mSink += sink;
+    }
+
+    private static void record(long[] times, long start, long added, long updated,
+            long removed) {
+        if (times != null) {
+            times[0] += added - start;
+            times[1] += updated - added;
+            times[2] += removed - updated;
+        }
+    }
+}
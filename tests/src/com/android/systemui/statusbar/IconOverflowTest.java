@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks {@link IconOverflow}, updated one icon at a time the way IconMerger
+ * does, against the linear scan IconMerger.onLayout() used to do over all of
+ * its children, for random widths, numbers, visibility flips, adds and
+ * removes.  Item 0 stands for the more view and is always empty.
+ */
+public class IconOverflowTest extends TestCase {
+    private static final int SEEDS = 20;
+    private static final int STEPS = 2000;
+    private static final int MAX_ICONS = 60;
+
+    /**
+     * A row of icons as the children of IconMerger see it.
+     */
+    static final class Row {
+        int size = 1;
+        final int[] widths = new int[MAX_ICONS + 1];
+        final int[] numbers = new int[MAX_ICONS + 1];
+        final boolean[] visible = new boolean[MAX_ICONS + 1];
+
+        int width(int i) {
+            return i > 0 && visible[i] ? widths[i] : 0;
+        }
+
+        int count(int i) {
+            if (i == 0 || !visible[i]) {
+                return 0;
+            }
+            final int n = numbers[i];
+            return n == 0 ? 1 : (n > 0 ? n : 0);
+        }
+
+        int total() {
+            int total = 0;
+            for (int i=1; i<size; i++) {
+                total += width(i);
+            }
+            return total;
+        }
+    }
+
+    /**
+     * What the old scan decided for a row that overflows by extra.
+     */
+    static final class Layout {
+        final boolean[] hidden = new boolean[MAX_ICONS + 1];
+        // -1 when no icon is left showing
+        int shift = -1;
+        int number;
+    }
+
+    /**
+     * The loop from the old IconMerger.onLayout(), with the visible children laid
+     * out side by side from fitLeft and the more view at index 0.
+     */
+    static Layout baseline(Row row, int fitLeft, int extra) {
+        final Layout out = new Layout();
+        final int breakingPoint = fitLeft + extra;
+        int childLeft = fitLeft;
+        for (int i=1; i<row.size; i++) {
+            if (!row.visible[i]) {
+                continue;
+            }
+            if (childLeft < breakingPoint) {
+                out.hidden[i] = true;
+                final int n = row.numbers[i];
+                if (n == 0) {
+                    out.number += 1;
+                } else if (n > 0) {
+                    out.number += n;
+                }
+            } else if (out.shift < 0) {
+                out.shift = childLeft - fitLeft;
+            }
+            childLeft += row.widths[i];
+        }
+        return out;
+    }
+
+    /**
+     * The same decision the way IconMerger makes it now.
+     */
+    static Layout fromOverflow(Row row, IconOverflow overflow, int extra) {
+        final Layout out = new Layout();
+        final int firstShown = overflow.firstFitting(1, extra);
+        for (int i=1; i<row.size; i++) {
+            if (row.visible[i]) {
+                if (i < firstShown) {
+                    out.hidden[i] = true;
+                } else if (out.shift < 0) {
+                    out.shift = overflow.widthBefore(firstShown);
+                }
+            }
+        }
+        out.number = overflow.countBefore(firstShown);
+        return out;
+    }
+
+    public void testMatchesLinearScan() {
+        for (int seed=0; seed<SEEDS; seed++) {
+            run(seed);
+        }
+    }
+
+    private void run(int seed) {
+        final Random random = new Random(seed);
+        final Row row = new Row();
+        final IconOverflow overflow = new IconOverflow();
+        overflow.setSize(1);
+        for (int step=0; step<STEPS; step++) {
+            final String where = "seed " + seed + " step " + step;
+            final int op = random.nextInt(100);
+            if ((op < 20 || row.size == 1) && row.size <= MAX_ICONS) {
+                // add at the end, the way icons are appended
+                final int i = row.size++;
+                row.widths[i] = 1 + random.nextInt(40);
+                row.numbers[i] = random.nextInt(7) - 1;
+                row.visible[i] = random.nextInt(4) != 0;
+                overflow.setSize(row.size);
+                overflow.set(i, row.width(i), row.count(i));
+            } else if (op < 30) {
+                // remove from anywhere; everything after it moves down one
+                final int index = 1 + random.nextInt(row.size - 1);
+                for (int i=index; i<row.size-1; i++) {
+                    row.widths[i] = row.widths[i + 1];
+                    row.numbers[i] = row.numbers[i + 1];
+                    row.visible[i] = row.visible[i + 1];
+                }
+                row.size--;
+                overflow.setSize(row.size);
+                for (int i=index; i<row.size; i++) {
+                    overflow.set(i, row.width(i), row.count(i));
+                }
+            } else {
+                final int i = 1 + random.nextInt(row.size - 1);
+                if (op < 75) {
+                    row.visible[i] = !row.visible[i];
+                } else {
+                    row.numbers[i] = random.nextInt(7) - 1;
+                }
+                overflow.set(i, row.width(i), row.count(i));
+            }
+            check(where, row, overflow, random);
+        }
+    }
+
+    private static void check(String where, Row row, IconOverflow overflow, Random random) {
+        assertEquals(where, row.size, overflow.size());
+        final int total = row.total();
+        assertEquals(where, total, overflow.widthBefore(row.size));
+        if (total == 0) {
+            return;
+        }
+        // a handful of widths it could be squeezed into, always including the edges
+        for (int k=0; k<4; k++) {
+            final int extra = k == 0 ? 1 : (k == 1 ? total : 1 + random.nextInt(total));
+            final int fitLeft = random.nextInt(50);
+            final Layout expected = baseline(row, fitLeft, extra);
+            final Layout actual = fromOverflow(row, overflow, extra);
+            final String at = where + " extra " + extra;
+            for (int i=1; i<row.size; i++) {
+                assertEquals(at + " icon " + i, expected.hidden[i], actual.hidden[i]);
+            }
+            assertEquals(at, expected.shift, actual.shift);
+            assertEquals(at, expected.number, actual.number);
+        }
+    }
+}
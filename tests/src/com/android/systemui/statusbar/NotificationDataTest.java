@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.systemui.statusbar;
+
+import android.app.Notification;
+import android.os.Binder;
+import android.os.IBinder;
+import android.test.AndroidTestCase;
+import android.view.View;
+
+import com.android.internal.statusbar.StatusBarNotification;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Runs random adds, in-place updates, removes and clears against
+ * {@link NotificationData}, and checks its running counters, key index and
+ * order against a full scan after every step.
+ */
+public class NotificationDataTest extends AndroidTestCase {
+    private static final int SEEDS = 20;
+    private static final int STEPS = 2000;
+
+    private View mRow;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRow = new View(getContext());
+    }
+
+    public void testCountersMatchFullScan() {
+        for (int seed=0; seed<SEEDS; seed++) {
+            run(seed);
+        }
+    }
+
+    private void run(int seed) {
+        final Random random = new Random(seed);
+        final NotificationData data = new NotificationData();
+        final ArrayList<IBinder> keys = new ArrayList<IBinder>();
+        for (int step=0; step<STEPS; step++) {
+            final String where = "seed " + seed + " step " + step;
+            final int op = random.nextInt(100);
+            if (op < 45 || keys.isEmpty()) {
+                final IBinder key = new Binder();
+                // few distinct times, so there are plenty of ties
+                final StatusBarNotification n = notification(random.nextInt(20),
+                        random.nextBoolean());
+                // entries without a row stand for ones whose views failed to inflate
+                data.add(key, n, random.nextInt(8) == 0 ? null : mRow, null, null, null);
+                keys.add(key);
+            } else if (op < 75) {
+                final IBinder key = keys.get(random.nextInt(keys.size()));
+                final NotificationData.Entry entry = data.getEntry(key);
+                // same when, flags may change
+                data.setNotification(entry, notification(entry.notification.notification.when,
+                        random.nextBoolean()));
+            } else if (op < 98) {
+                final IBinder key = keys.remove(random.nextInt(keys.size()));
+                assertNotNull(where, data.remove(key));
+                assertNull(where, data.remove(key));
+            } else {
+                data.clear();
+                keys.clear();
+            }
+            check(where, data, keys);
+        }
+    }
+
+    private static StatusBarNotification notification(long when, boolean noClear) {
+        final Notification n = new Notification();
+        n.when = when;
+        n.flags = noClear ? Notification.FLAG_NO_CLEAR : 0;
+        return new StatusBarNotification("com.android.systemui.tests", 0, null, 0, 0, n);
+    }
+
+    private static void check(String where, NotificationData data, ArrayList<IBinder> keys) {
+        assertEquals(where, keys.size(), data.size());
+        boolean visible = false;
+        boolean clearable = false;
+        final int N = data.size();
+        for (int i=0; i<N; i++) {
+            final NotificationData.Entry entry = data.getEntryAt(i);
+            if (entry.row != null) {
+                visible = true;
+                if ((entry.notification.notification.flags & Notification.FLAG_NO_CLEAR) == 0) {
+                    clearable = true;
+                }
+            }
+            if (i > 0) {
+                assertTrue(where, data.getEntryAt(i - 1).when <= entry.when);
+            }
+            assertEquals(where, i, data.findEntry(entry.key));
+            assertSame(where, entry, data.getEntry(entry.key));
+        }
+        // equal times stay in the order they were added
+        final HashMap<Long, Integer> lastIndex = new HashMap<Long, Integer>();
+        for (IBinder key : keys) {
+            final int index = data.findEntry(key);
+            assertTrue(where, index >= 0);
+            final Integer last = lastIndex.put(data.getEntryAt(index).when, index);
+            if (last != null) {
+                assertTrue(where, last < index);
+            }
+        }
+        assertEquals(where, visible, data.hasVisibleItems());
+        assertEquals(where, clearable, data.hasClearableItems());
+    }
+}